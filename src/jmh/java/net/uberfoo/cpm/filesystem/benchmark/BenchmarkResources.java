@@ -0,0 +1,89 @@
+package net.uberfoo.cpm.filesystem.benchmark;
+
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import static net.uberfoo.cpm.filesystem.DiskParameterBlocks.*;
+
+/**
+ * Loads the test resources shared by the benchmarks.
+ */
+final class BenchmarkResources {
+
+    private BenchmarkResources() {}
+
+    /**
+     * Loads a test resource into a heap buffer.
+     *
+     * @param name The name of the resource
+     * @return A buffer containing the resource
+     */
+    static ByteBuffer load(String name) throws IOException, URISyntaxException {
+        return ByteBuffer.wrap(Files.readAllBytes(Path.of(ClassLoader.getSystemResource(name).toURI())));
+    }
+
+    /**
+     * Gets one of the well known disk parameter blocks by name.
+     *
+     * @param name The name of the constant in DiskParameterBlocks
+     * @return The disk parameters
+     */
+    static DiskParameterBlock dpb(String name) {
+        return switch (name) {
+            case "Z80RB_DPB" -> Z80RB_DPB;
+            case "Z80RB_BOOT_DPB" -> Z80RB_BOOT_DPB;
+            case "OSBORNE_1_DPB" -> OSBORNE_1_DPB;
+            case "AMPRO_400_DPB" -> AMPRO_400_DPB;
+            default -> throw new IllegalArgumentException(name);
+        };
+    }
+
+    /**
+     * Builds a disk image to benchmark against. "system1" is the bundled
+     * Ampro image, any other name is a fresh filesystem of that
+     * DPB filled with copies of BIGTREK.BAS and the 2 MB sample text
+     * where it fits.
+     *
+     * @param name The image or DPB name
+     * @return A buffer with the disk image
+     */
+    static ByteBuffer image(String name) throws IOException, URISyntaxException {
+        if (name.equals("system1")) {
+            return load("system1.img");
+        }
+
+        var dpb = dpb(name);
+        var buffer = ByteBuffer.allocate(dpb.getFilesystemSize());
+        var disk = CpmDisk.makeFilesystem(dpb, buffer);
+
+        var sample = load("sample-2mb-text-file.txt");
+        if (sample.capacity() < disk.getUnusedBlockCount() * (long)dpb.getBlockSize() / 2) {
+            disk.createFile("SAMPLE.TXT", 0, new BitSet(11), sample);
+        }
+
+        var bigtrek = load("BIGTREK.BAS");
+        for (int i = 0; disk.getUnusedBlockCount() * (long)dpb.getBlockSize() > bigtrek.capacity() * 2L
+                && disk.getUnusedEntries().count() > 4; i++) {
+            disk.createFile(String.format("TREK%04d.BAS", i), i % 16, new BitSet(11), bigtrek.rewind());
+        }
+
+        return buffer.rewind();
+    }
+
+    /**
+     * Gets the disk parameters of an image built by {@link #image(String)}.
+     *
+     * @param name The image or DPB name
+     * @return The disk parameters
+     */
+    static DiskParameterBlock imageDpb(String name) {
+        return name.equals("system1") ? AMPRO_400_DPB : dpb(name);
+    }
+}
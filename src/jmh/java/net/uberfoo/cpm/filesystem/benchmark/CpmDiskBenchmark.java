@@ -0,0 +1,74 @@
+package net.uberfoo.cpm.filesystem.benchmark;
+
+import net.uberfoo.cpm.filesystem.AllocationTableFile;
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the read paths of {@link CpmDisk} against the bundled
+ * Ampro image and populated images of the test disk parameter blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpmDiskBenchmark {
+
+    @Param({"system1", "Z80RB_DPB", "OSBORNE_1_DPB"})
+    public String image;
+
+    private DiskParameterBlock dpb;
+    private ByteBuffer buffer;
+    private CpmDisk disk;
+    private AllocationTableFile file;
+    private String filename;
+    private int stat;
+
+    @Setup
+    public void setup() throws Exception {
+        dpb = BenchmarkResources.imageDpb(image);
+        buffer = BenchmarkResources.image(image);
+        disk = new CpmDisk(dpb, buffer);
+
+        // Look up and read the largest file on the disk
+        file = disk.getFilesStream()
+                .max((a, b) -> Long.compare(a.size(), b.size()))
+                .orElseThrow();
+        filename = file.getFilename();
+        stat = file.getStat();
+    }
+
+    @Benchmark
+    public CpmDisk parse() throws Exception {
+        return new CpmDisk(dpb, buffer);
+    }
+
+    @Benchmark
+    public List<AllocationTableFile> getFilesStream() {
+        return disk.getFilesStream().toList();
+    }
+
+    @Benchmark
+    public Optional<AllocationTableFile> findFile() {
+        return disk.findFile(filename, stat);
+    }
+
+    @Benchmark
+    public ByteBuffer retrieveFileContents() {
+        return file.retrieveFileContents();
+    }
+
+    @Benchmark
+    public void getUnusedBlocks(Blackhole blackhole) {
+        disk.getUnusedBlocks().forEach(blackhole::consume);
+    }
+}
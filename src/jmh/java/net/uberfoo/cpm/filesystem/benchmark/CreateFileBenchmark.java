@@ -0,0 +1,121 @@
+package net.uberfoo.cpm.filesystem.benchmark;
+
+import net.uberfoo.cpm.filesystem.AllocationTableFile;
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Math.ceilDiv;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * Benchmarks {@link CpmDisk#createFile} for files from 1 KB to 2 MB.
+ * A single create takes microseconds, too short to run a fixture
+ * around, so each iteration times a batch of creates on disks
+ * that are formatted before the iteration. Every file of a batch
+ * gets its own name and the disks are sized so that none fills up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = CreateFileBenchmark.BATCH)
+@Measurement(iterations = 50, batchSize = CreateFileBenchmark.BATCH)
+@Fork(1)
+public class CreateFileBenchmark {
+
+    static final int BATCH = 16;
+
+    /**
+     * Enough empty disks of one format to create a batch of files.
+     */
+    public abstract static class Disks {
+
+        private final String[] names = new String[BATCH];
+        private CpmDisk[] disks;
+        private int perDisk;
+        private int created;
+
+        ByteBuffer contents;
+
+        protected Disks() {
+            for (int i = 0; i < BATCH; i++) {
+                names[i] = String.format("BENCH%02d.TXT", i);
+            }
+        }
+
+        void format(DiskParameterBlock dpb) throws IOException {
+            int blocks = max(1, ceilDiv(contents.limit(), dpb.getBlockSize()));
+            int entries = ceilDiv(blocks, dpb.getBlockPointersPerEntry());
+            var first = CpmDisk.makeFilesystem(dpb);
+            perDisk = min(first.getUnusedBlockCount() / blocks, (int)first.getUnusedEntries().count() / entries);
+
+            disks = new CpmDisk[ceilDiv(BATCH, perDisk)];
+            disks[0] = first;
+            for (int i = 1; i < disks.length; i++) {
+                disks[i] = CpmDisk.makeFilesystem(dpb);
+            }
+            created = 0;
+        }
+
+        AllocationTableFile create() throws IOException {
+            var disk = disks[created / perDisk];
+            return disk.createFile(names[created++], 0, new BitSet(11), contents.rewind());
+        }
+    }
+
+    /**
+     * Z80-Retro hard disk partitions.
+     */
+    @State(Scope.Thread)
+    public static class HardDisk extends Disks {
+
+        @Param({"1024", "65536", "2097152"})
+        public int size;
+
+        @Setup(Level.Trial)
+        public void load() throws Exception {
+            contents = BenchmarkResources.load("sample-2mb-text-file.txt").slice(0, size);
+        }
+
+        @Setup(Level.Iteration)
+        public void format() throws Exception {
+            format(BenchmarkResources.dpb("Z80RB_DPB"));
+        }
+    }
+
+    /**
+     * Osborne 1 floppies with a skew table.
+     */
+    @State(Scope.Thread)
+    public static class Floppy extends Disks {
+
+        @Param({"1024", "39936"})
+        public int floppySize;
+
+        @Setup(Level.Trial)
+        public void load() throws Exception {
+            contents = BenchmarkResources.load("BIGTREK.BAS").slice(0, floppySize);
+        }
+
+        @Setup(Level.Iteration)
+        public void format() throws Exception {
+            format(BenchmarkResources.dpb("OSBORNE_1_DPB"));
+        }
+    }
+
+    @Benchmark
+    public AllocationTableFile createFile(HardDisk state) throws Exception {
+        return state.create();
+    }
+
+    @Benchmark
+    public AllocationTableFile createFileSkewed(Floppy state) throws Exception {
+        return state.create();
+    }
+}
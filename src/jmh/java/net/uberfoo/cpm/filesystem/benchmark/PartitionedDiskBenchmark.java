@@ -0,0 +1,40 @@
+package net.uberfoo.cpm.filesystem.benchmark;
+
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.LabeledDisk;
+import net.uberfoo.cpm.filesystem.PartitionedDisk;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building a partitioned disk image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionedDiskBenchmark {
+
+    private PartitionedDisk partitionedDisk;
+
+    @Setup
+    public void setup() throws Exception {
+        partitionedDisk = new PartitionedDisk();
+        partitionedDisk.add(new LabeledDisk("BOOT", disk("Z80RB_BOOT_DPB")));
+        partitionedDisk.add(new LabeledDisk("Floppy Drive", disk("OSBORNE_1_DPB")));
+        partitionedDisk.add(new LabeledDisk("Drive C", disk("Z80RB_DPB")));
+    }
+
+    private static CpmDisk disk(String name) throws Exception {
+        return new CpmDisk(BenchmarkResources.dpb(name), BenchmarkResources.image(name));
+    }
+
+    @Benchmark
+    public ByteBuffer createDisk() throws Exception {
+        return partitionedDisk.createDisk();
+    }
+}
@@ -0,0 +1,45 @@
+package net.uberfoo.cpm.filesystem.benchmark;
+
+import net.uberfoo.cpm.filesystem.AllocationTableFile;
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks lookups and reads of different files by several
+ * threads sharing one {@link CpmDisk}. Compare the throughput
+ * with a single thread to see how reads scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SharedDiskBenchmark {
+
+    @Param({"system1", "Z80RB_DPB"})
+    public String image;
+
+    private CpmDisk disk;
+    private List<AllocationTableFile> files;
+
+    @Setup
+    public void setup() throws Exception {
+        disk = new CpmDisk(BenchmarkResources.imageDpb(image), BenchmarkResources.image(image));
+        files = disk.getFiles();
+    }
+
+    @Benchmark
+    public ByteBuffer findAndRead() {
+        var file = files.get(ThreadLocalRandom.current().nextInt(files.size()));
+        return disk.findFile(file.getFilename(), file.getStat())
+                .orElseThrow()
+                .retrieveFileContents();
+    }
+}
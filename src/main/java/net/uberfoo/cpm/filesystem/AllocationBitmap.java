@@ -0,0 +1,98 @@
+package net.uberfoo.cpm.filesystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bitmap of the blocks in use on a disk. Bits are
+ * updated with compare and set so that several writers can claim
+ * free blocks at once without locking.
+ */
+final class AllocationBitmap {
+
+    private final AtomicLongArray words;
+    private final int size;
+
+    /**
+     * Creates an empty bitmap.
+     *
+     * @param size The number of blocks
+     */
+    AllocationBitmap(int size) {
+        this.size = size;
+        words = new AtomicLongArray(Math.ceilDiv(size, Long.SIZE));
+    }
+
+    boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    void set(int index, boolean used) {
+        long mask = 1L << index;
+        words.getAndUpdate(index >>> 6, w -> used ? w | mask : w & ~mask);
+    }
+
+    /**
+     * Sets every bit that is set in another bitmap of the same size.
+     *
+     * @param other The bitmap to merge
+     */
+    void or(AllocationBitmap other) {
+        for (int i = 0; i < words.length(); i++) {
+            long bits = other.words.get(i);
+            words.getAndUpdate(i, w -> w | bits);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0L);
+        }
+    }
+
+    /**
+     * Finds the first clear bit at or after an index.
+     *
+     * @param from The index to start at
+     * @return The index of the bit, which is the size of the bitmap if every bit is set
+     */
+    int nextClearBit(int from) {
+        for (int i = from; i < size; i++) {
+            int word = i >>> 6;
+            long free = ~words.get(word) & (-1L << i);
+            if (free != 0) {
+                return Math.min(word * Long.SIZE + Long.numberOfTrailingZeros(free), size);
+            }
+            i = word * Long.SIZE + Long.SIZE - 1;
+        }
+        return size;
+    }
+
+    /**
+     * Atomically sets the first clear bit at or after an index.
+     *
+     * @param from The index to start at
+     * @return The index of the claimed bit, or -1 if every bit is set
+     */
+    int claim(int from) {
+        for (int i = nextClearBit(from); i < size; i = nextClearBit(i)) {
+            long w = words.get(i >>> 6);
+            if ((w & (1L << i)) == 0 && words.compareAndSet(i >>> 6, w, w | (1L << i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the set bits.
+     *
+     * @return A number of blocks
+     */
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+}
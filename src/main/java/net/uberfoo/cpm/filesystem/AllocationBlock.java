@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
 
 /**
@@ -35,11 +36,29 @@ public class AllocationBlock extends DiskBlock {
 
         // Iterate over the entries in the allocation block
         for (int i = 0; i < numEntries; i++) {
-            var entryBytes = new byte[ENTRY_SIZE];
-            block.get(entryBytes);
+            allocationTable[i] = new AllocationTableEntry(index, i, block, block.position() + i * ENTRY_SIZE, dpb);
+            LOG.trace("{}", allocationTable[i]);
+        }
+    }
 
-            allocationTable[i] = new AllocationTableEntry(index, i, entryBytes, dpb);
-            LOG.trace(allocationTable[i].toString());
+    /**
+     * Creates a new AllocationBlock of entries viewed in place in
+     * a disk image. The entries are not copied so they always
+     * reflect the contents of the disk.
+     *
+     * @param index Index of the block
+     * @param entryView Maps the index of an entry to a view of its bytes in the disk image
+     * @param dpb The disk parameters
+     */
+    AllocationBlock(long index, IntFunction<ByteBuffer> entryView, DiskParameterBlock dpb) {
+        super(index, dpb);
+        numEntries = dpb.getBlockSize() / ENTRY_SIZE;
+        this.allocationTable = new AllocationTableEntry[numEntries];
+        LOG.trace(" --- Allocation table #{}", index);
+
+        for (int i = 0; i < numEntries; i++) {
+            allocationTable[i] = new AllocationTableEntry(index, i, entryView.apply(i), 0, dpb);
+            LOG.trace("{}", allocationTable[i]);
         }
     }
 
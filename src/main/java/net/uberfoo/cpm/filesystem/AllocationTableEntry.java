@@ -3,10 +3,8 @@ package net.uberfoo.cpm.filesystem;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.BitSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.stream.IntStream;
 
 import static java.lang.Math.*;
@@ -22,14 +20,18 @@ public class AllocationTableEntry {
      */
     public static final int RECORD_LEN = 128;
 
-    private final int stat;
+    private int stat;
     private String filename;
     private String extension;
     private BitSet flags;
-    private final int extent;
+    private int extent;
     private int recordCount;
     private int bc;
-    private List<Long> blockPointers;
+    private int[] blockPointers;
+    private int blockPointerCount;
+
+    private ByteBuffer source;
+    private final int offset;
 
     private final int index;
     private final long allocBlockPointer;
@@ -58,11 +60,14 @@ public class AllocationTableEntry {
         this.index = index;
         this.extent = extent;
         this.dpb = dpb;
-        blockPointers = new LinkedList<>();
+        this.source = null;
+        this.offset = 0;
+        blockPointers = new int[dpb.getBlockPointersPerEntry()];
     }
 
     /**
      * Creates a file allocation table entry based on the bytes of an entry.
+     * The bytes are copied, so later changes to the array are not seen.
      *
      * @param allocBlockPointer Block pointer to the allocation block containing this entry.
      * @param index Tables index containing this entry.
@@ -70,42 +75,39 @@ public class AllocationTableEntry {
      * @param dpb The disk parameters to use when parsing this entry.
      */
     public AllocationTableEntry(long allocBlockPointer, int index, @NotNull byte[] entryBytes, @NotNull DiskParameterBlock dpb) {
+        this(allocBlockPointer, index, ByteBuffer.wrap(Arrays.copyOf(entryBytes, AllocationBlock.ENTRY_SIZE)), 0, dpb);
+    }
+
+    /**
+     * Creates a view of the file allocation table entry stored in a
+     * buffer. Nothing is copied; every field is decoded from the
+     * buffer when it is accessed, so the view always reflects the
+     * current contents of the buffer.
+     *
+     * @param allocBlockPointer Block pointer to the allocation block containing this entry.
+     * @param index Tables index containing this entry.
+     * @param source The buffer containing the entry.
+     * @param offset The position of the entry within the buffer.
+     * @param dpb The disk parameters to use when parsing this entry.
+     */
+    AllocationTableEntry(long allocBlockPointer, int index, @NotNull ByteBuffer source, int offset, @NotNull DiskParameterBlock dpb) {
         this.index = index;
         this.allocBlockPointer = allocBlockPointer;
         this.dpb = dpb;
-        flags = new BitSet(11);
-
-        stat = Byte.toUnsignedInt(entryBytes[0]);
-
-        byte[] fileNameBytes = Arrays.copyOfRange(entryBytes, 1, 12);
-        IntStream.range(0, 11)
-                .forEachOrdered(j -> {
-                    if ((fileNameBytes[j] & 128) > 0) {
-                        flags.set(j);
-                    }
-                    fileNameBytes[j] &= 0x7F;
-                });
-
-        extension = new String(fileNameBytes).substring(8).trim();
-        filename = new String(fileNameBytes).substring(0, 8).trim();
-
-        int xl = Byte.toUnsignedInt(entryBytes[12]); // Extent, low byte
-        bc = Byte.toUnsignedInt(entryBytes[13]);  // Byte count, unused in CP/M 2.2
-        int xh = Byte.toUnsignedInt(entryBytes[14]); // Extent, high byte
-        int rc = Byte.toUnsignedInt(entryBytes[15]); // Record count, low bits
-
-        // Decode the record count and extent number
-        recordCount = ((int)(xl & dpb.extentMask()) << 7) + rc;
-        extent = (xh << ((9 - dpb.extentMask()) >> 1)) + (xl / (dpb.extentMask() + 1));
-
-        byte[] blockPointerBytes = Arrays.copyOfRange(entryBytes, 16, 32);
+        this.source = source;
+        this.offset = offset;
+    }
 
-        // TODO: Right now we just support disks greater than 256 blocks
-        //  which means there are 8 block pointers per extent
-        blockPointers = IntStream.range(0, 8)
-                .mapToLong(x -> Byte.toUnsignedInt(blockPointerBytes[x * 2]) + (Byte.toUnsignedInt(blockPointerBytes[(x * 2) + 1]) << 8))
-                .boxed().toList();
+    private int getByte(int i) {
+        return Byte.toUnsignedInt(source.get(offset + i));
+    }
 
+    private String decodeName(int from, int to) {
+        var chars = new char[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = (char)(getByte(i) & 0x7F);
+        }
+        return new String(chars).trim();
     }
 
     /**
@@ -116,6 +118,12 @@ public class AllocationTableEntry {
     public byte[] encode() {
         byte[] bytes = new byte[AllocationBlock.ENTRY_SIZE];
 
+        // A decoded entry is already in disk format
+        if (source != null) {
+            source.get(offset, bytes);
+            return bytes;
+        }
+
         // Set stat value, used as user number
         bytes[0] = (byte)stat;
 
@@ -129,30 +137,31 @@ public class AllocationTableEntry {
         IntStream.range(9, 12)
                 .forEach(i -> bytes[i] = paddedExt.getBytes()[i - 9]);
 
-        // Compute the extent low and high bytes
-        bytes[12] = (byte)((extent * (dpb.extentMask() + 1))  & 0x1F); // Extent, low byte
-        bytes[14] = (byte)(extent >> ((9 - dpb.extentMask()) / 2)); // Extent, high byte
+        // An entry holds extent mask + 1 logical extents of 128 records each.
+        // The low bits of the extent count the full logical extents before
+        // the last one, and RC holds the records of the last one, 1 to 128.
+        int fullExtents = recordCount > 0 ? ((recordCount - 1) >> 7) & dpb.extentMask() : 0;
+        int logicalExtent = extent * (dpb.extentMask() + 1) + fullExtents;
+        bytes[12] = (byte)(logicalExtent & 0x1F); // Extent, low byte
+        bytes[14] = (byte)(logicalExtent >> 5); // Extent, high byte
 
         // Byte counter
-        bytes[13] = 0x00; // 0 for CP/M 2.2, byte count of last record in CP/M 3
+        bytes[13] = (byte)bc; // 0 for CP/M 2.2, byte count of last record in CP/M 3
 
-        // Compute lower bits of extent, low byte
-        if (recordCount > 127) {
-            bytes[12] |= ((recordCount - RECORD_LEN) >> 7) & dpb.extentMask();
-        }
-
-        // Calculate the low part of the record count
-        // the cast to byte makes sure we only get the lower bits
-        bytes[15] = (byte)(recordCount - (bytes[12] & dpb.extentMask()) * RECORD_LEN);
+        // Records of the last logical extent
+        bytes[15] = (byte)(recordCount - fullExtents * RECORD_LEN);
 
         // Copy in block pointers
-        IntStream.range(0, blockPointers.size())
-                .forEach(i -> {
-                    // Low byte first
-                    bytes[i * 2 + 16] = (byte)(blockPointers.get(i) & 0xFF);
-                    // High byte next
-                    bytes[i * 2 + 17] = (byte)((blockPointers.get(i) >> 8) & 0xFF);
-                });
+        for (int i = 0; i < blockPointerCount; i++) {
+            if (dpb.getBlockPointerSize() == 1) {
+                bytes[i + 16] = (byte)(blockPointers[i] & 0xFF);
+            } else {
+                // Low byte first
+                bytes[i * 2 + 16] = (byte)(blockPointers[i] & 0xFF);
+                // High byte next
+                bytes[i * 2 + 17] = (byte)((blockPointers[i] >> 8) & 0xFF);
+            }
+        }
 
         // Process the flags if any
         flags.stream()
@@ -180,7 +189,8 @@ public class AllocationTableEntry {
      * @return The full file name
      */
     public String getFullFilename() {
-        return filename + (extension.isBlank() ? "" : "." + extension);
+        var extension = getExtension();
+        return getFilename() + (extension.isBlank() ? "" : "." + extension);
     }
 
     /**
@@ -189,7 +199,7 @@ public class AllocationTableEntry {
      * @return The stat byte
      */
     public int getStat() {
-        return stat;
+        return source == null ? stat : getByte(0);
     }
 
     /**
@@ -198,7 +208,7 @@ public class AllocationTableEntry {
      * @return The name.
      */
     public String getFilename() {
-        return filename;
+        return source == null ? filename : decodeName(1, 9);
     }
 
     /**
@@ -207,7 +217,7 @@ public class AllocationTableEntry {
      * @return The extention.
      */
     public String getExtension() {
-        return extension;
+        return source == null ? extension : decodeName(9, 12);
     }
 
     /**
@@ -216,6 +226,15 @@ public class AllocationTableEntry {
      * @return The flag bits
      */
     public BitSet getFlags() {
+        if (source == null) {
+            return flags;
+        }
+        var flags = new BitSet(11);
+        for (int i = 0; i < 11; i++) {
+            if ((getByte(i + 1) & 0x80) != 0) {
+                flags.set(i);
+            }
+        }
         return flags;
     }
 
@@ -226,7 +245,12 @@ public class AllocationTableEntry {
      * @return The extent number.
      */
     public int getExtent() {
-        return extent;
+        if (source == null) {
+            return extent;
+        }
+        int xl = getByte(12); // Extent, low byte
+        int xh = getByte(14); // Extent, high byte
+        return ((xh << 5) + xl) / (dpb.extentMask() + 1);
     }
 
     /**
@@ -236,7 +260,12 @@ public class AllocationTableEntry {
      * @return The count of records.
      */
     public int getRecordCount() {
-        return recordCount;
+        if (source == null) {
+            return recordCount;
+        }
+        int xl = getByte(12); // Extent, low byte
+        int rc = getByte(15); // Record count, low bits
+        return ((xl & dpb.extentMask()) << 7) + rc;
     }
 
     /**
@@ -245,17 +274,61 @@ public class AllocationTableEntry {
      * @return The BC byte.
      */
     public int getBc() {
-        return bc;
+        return source == null ? bc : getByte(13); // Byte count, unused in CP/M 2.2
     }
 
     /**
      * Gets the list of block pointers for this entry.
-     * There can be up to 8 block pointers in an entry.
+     * There can be up to 8 block pointers in an entry,
+     * or 16 on disks with 256 blocks or less.
      *
      * @return A list of block pointers
      */
     public List<Long> getBlockPointers() {
-        return blockPointers;
+        var list = new ArrayList<Long>(getBlockPointerCount());
+        for (int i = 0; i < getBlockPointerCount(); i++) {
+            list.add((long)getBlockPointer(i));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Gets the number of block pointers held by this entry.
+     * A decoded entry always holds a full set, with unused
+     * pointers set to zero.
+     *
+     * @return A count of block pointers
+     */
+    public int getBlockPointerCount() {
+        return source == null ? blockPointerCount : dpb.getBlockPointersPerEntry();
+    }
+
+    /**
+     * Gets a single block pointer of this entry.
+     *
+     * @param i The index of the pointer
+     * @return A block pointer, zero if unused
+     */
+    public int getBlockPointer(int i) {
+        if (source == null) {
+            return blockPointers[i];
+        }
+        if (dpb.getBlockPointerSize() == 1) {
+            return getByte(16 + i);
+        }
+        return getByte(16 + i * 2) + (getByte(17 + i * 2) << 8);
+    }
+
+    /**
+     * Checks whether every block pointer of this entry is in use.
+     *
+     * @return True if no more blocks can be added
+     */
+    boolean isFull() {
+        if (source == null) {
+            return blockPointerCount == dpb.getBlockPointersPerEntry();
+        }
+        return getBlockPointer(dpb.getBlockPointersPerEntry() - 1) != 0;
     }
 
     /**
@@ -278,7 +351,7 @@ public class AllocationTableEntry {
 
     @Override
     public String toString() {
-        var hexValues = blockPointers.stream()
+        var hexValues = getBlockPointers().stream()
                 .map(x -> String.format("0x%04x", x))
                 .toArray();
 
@@ -286,9 +359,42 @@ public class AllocationTableEntry {
     }
 
     void addBlock(DiskBlock block) {
-        recordCount = dpb.getBlockRecordCount() * (int)(blockPointers.stream().filter(x -> x != 0).count())
-                + ceilDiv(block.getBlockSize(), RECORD_LEN);
-        blockPointers.add(block.index);
+        if (source != null) {
+            detach();
+        }
+        int usedBlocks = 0;
+        for (int i = 0; i < blockPointerCount; i++) {
+            if (blockPointers[i] != 0) {
+                usedBlocks++;
+            }
+        }
+        recordCount = dpb.getBlockRecordCount() * usedBlocks + ceilDiv(block.getBlockSize(), RECORD_LEN);
+        blockPointers[blockPointerCount++] = (int)block.index;
+    }
+
+    /**
+     * Decodes every field of a decoded entry so that it can be
+     * changed without touching the buffer it was decoded from.
+     * Only the pointers up to the last one in use are kept, so
+     * that blocks are added after them.
+     */
+    private void detach() {
+        stat = getStat();
+        filename = getFilename();
+        extension = getExtension();
+        flags = getFlags();
+        extent = getExtent();
+        recordCount = getRecordCount();
+        bc = getBc();
+        blockPointers = new int[dpb.getBlockPointersPerEntry()];
+        blockPointerCount = 0;
+        for (int i = 0; i < blockPointers.length; i++) {
+            blockPointers[i] = getBlockPointer(i);
+            if (blockPointers[i] != 0) {
+                blockPointerCount = i + 1;
+            }
+        }
+        source = null;
     }
 
 
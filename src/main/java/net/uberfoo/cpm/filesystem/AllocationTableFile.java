@@ -1,29 +1,30 @@
 package net.uberfoo.cpm.filesystem;
 
 import org.jetbrains.annotations.NotNull;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
-import java.util.stream.IntStream;
 
 /**
  * Represents an entire file composed of one or more allocation table entries.
  */
 public class AllocationTableFile {
 
-    private static final Logger LOG = LoggerFactory.getLogger(AllocationTableFile.class);
-
     private final int stat;
     private final String filename;
     private final BitSet flags;
     private int recordCount;
     private int byteCount;
 
-    private final List<Long> blockPointers;
+    private int[] blockPointers;
+    private int blockCount;
 
-    private final List<CpmDisk.EntryCoordinates> allocationIndexes;
+    private int[] entryBlocks;
+    private int[] entryIndexes;
+    private int entryCount;
 
     private final DiskParameterBlock diskParameterBlock;
 
@@ -36,8 +37,9 @@ public class AllocationTableFile {
         this.flags = flags;
         this.diskParameterBlock = diskParameterBlock;
         this.disk = disk;
-        blockPointers = new LinkedList<>();
-        allocationIndexes = new LinkedList<>();
+        blockPointers = new int[0];
+        entryBlocks = new int[0];
+        entryIndexes = new int[0];
     }
 
     AllocationTableFile(@NotNull List<AllocationTableEntry> tableEntries,
@@ -45,22 +47,13 @@ public class AllocationTableFile {
                         @NotNull CpmDisk disk) {
         this.diskParameterBlock = diskParameterBlock;
         this.disk = disk;
-        blockPointers = new ArrayList<>(tableEntries.size() * 8);
-        allocationIndexes = new ArrayList<>(tableEntries.size());
-
-        var list = tableEntries.stream()
-                // Ensure entries are in order by extent number
-                .sorted(Comparator.comparingInt(AllocationTableEntry::getExtent)).toList();
-
-        var first = list.stream().findFirst().orElseThrow();
+        var first = tableEntries.stream().findFirst().orElseThrow();
 
         filename = first.getFullFilename();
         stat = first.getStat();
         flags = first.getFlags();
 
-        list.forEach(x -> {
-            processEntry(x);
-        });
+        processEntries(tableEntries);
     }
 
     /**
@@ -72,35 +65,158 @@ public class AllocationTableFile {
         int size = recordCount * DiskParameterBlock.getRecordSize();
         var buff = ByteBuffer.allocate(size);
 
-        IntStream.range(0, blockPointers.size())
-                .mapToObj(i -> {
-                    int blockSize = diskParameterBlock.getBlockSize();
-                    if (i == blockPointers.size() - 1)
-                        blockSize = size % blockSize;
+        newChannel().transfer(buff);
+
+        return buff.rewind();
+    }
+
+    /**
+     * Opens a channel that streams the contents of this file
+     * directly from the sectors of the disk. Blocks are visited
+     * lazily and nothing is copied until read into the
+     * destination buffer.
+     *
+     * @return A readable channel of the contents.
+     */
+    public FileContentsChannel newChannel() {
+        return new FileContentsChannel(this);
+    }
+
+    /**
+     * Reads the contents of this file from a position into the
+     * supplied buffer. Only the sectors that hold the requested
+     * bytes are visited, straight from the disk.
+     *
+     * @param position The position in the file to read from.
+     * @param dst The buffer to transfer bytes into.
+     * @return The number of bytes read, or -1 if the position is at or past the end of the file.
+     */
+    public int read(long position, @NotNull ByteBuffer dst) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        var size = size();
+        if (position >= size) {
+            return -1;
+        }
 
-                    LOG.trace("allocating Block #{}: {}bytes", i, blockSize);
+        int blockSize = diskParameterBlock.getBlockSize();
+        int sectorSize = diskParameterBlock.sectorSize();
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int blockIndex = (int)(position / blockSize);
+            if (blockIndex >= blockCount) {
+                break;
+            }
+            int offset = (int)(position % blockSize);
+
+            // The slice covers the rest of the run of consecutive sectors
+            var slice = disk.sliceBlock(blockPointers[blockIndex], offset / sectorSize);
+            slice.position(offset % sectorSize);
+            int length = (int)Math.min(Math.min(slice.remaining(), dst.remaining()), size - position);
+            dst.put(dst.position(), slice, slice.position(), length);
+            dst.position(dst.position() + length);
+            position += length;
+            read += length;
+        }
 
-                    return disk.readBlock(blockPointers.get(i)).slice(0, blockSize);
-                })
-                .forEachOrdered(buff::put);
+        return (read == 0 && dst.hasRemaining()) ? -1 : read;
+    }
 
-        return buff;
+    /**
+     * Opens an input stream that streams the contents of this
+     * file directly from the sectors of the disk.
+     *
+     * @return An input stream of the contents.
+     */
+    public InputStream newInputStream() {
+        return Channels.newInputStream(newChannel());
+    }
+
+    /**
+     * Writes to this file at a position, overwriting its contents
+     * and growing it as needed. Only the sectors holding the written
+     * bytes are rewritten and only the directory entries whose blocks
+     * or record count change are re-encoded. Any gap between the end
+     * of the file and the position is filled with zeros.
+     *
+     * @param position The position in the file to write at.
+     * @param src The bytes to write, from position to limit.
+     * @return The number of bytes written.
+     * @throws IOException If the disk lacks space or directory entries.
+     * @throws java.io.FileNotFoundException If the file has been deleted.
+     */
+    public int write(long position, @NotNull ByteBuffer src) throws IOException {
+        return disk.writeFile(this, position, src);
+    }
+
+    /**
+     * Appends to the end of this file. The size of a file is a whole
+     * number of records, so the bytes are written after the padding
+     * of the last record.
+     *
+     * @param src The bytes to append, from position to limit.
+     * @return The number of bytes written.
+     * @throws IOException If the disk lacks space or directory entries.
+     * @throws java.io.FileNotFoundException If the file has been deleted.
+     */
+    public int append(@NotNull ByteBuffer src) throws IOException {
+        return write(size(), src);
+    }
+
+    /**
+     * Shrinks this file to a size, rounded up to a whole record.
+     * The blocks past the new end of the file are freed and the
+     * entries that are no longer needed are deleted. A file that
+     * is already no larger than the size is left as it is.
+     *
+     * @param size The new size of the file.
+     * @throws IOException If the directory cannot be written.
+     * @throws java.io.FileNotFoundException If the file has been deleted.
+     */
+    public void truncate(long size) throws IOException {
+        disk.truncateFile(this, size);
     }
 
     /**
      * Deletes this file from the file allocation directory by marking all of it's entries with 0xE5
      */
     public void delete() {
-        for (CpmDisk.EntryCoordinates x : allocationIndexes) {
-            disk.deleteAllocEntry(x.block(), x.index());
+        for (int i = 0; i < entryCount; i++) {
+            disk.deleteAllocEntry(entryBlocks[i], entryIndexes[i]);
         }
     }
 
+    /**
+     * Replaces the entries of this file after they have been rewritten.
+     */
+    void reload(@NotNull List<AllocationTableEntry> tableEntries) {
+        recordCount = 0;
+        processEntries(tableEntries);
+    }
+
+    private void processEntries(@NotNull List<AllocationTableEntry> tableEntries) {
+        blockPointers = new int[tableEntries.size() * diskParameterBlock.getBlockPointersPerEntry()];
+        blockCount = 0;
+        entryBlocks = new int[tableEntries.size()];
+        entryIndexes = new int[tableEntries.size()];
+        entryCount = 0;
+        tableEntries.stream()
+                // Ensure entries are in order by extent number
+                .sorted(Comparator.comparingInt(AllocationTableEntry::getExtent))
+                .forEach(this::processEntry);
+    }
+
     private void processEntry(@NotNull AllocationTableEntry x) {
         recordCount += x.getRecordCount();
         byteCount = x.getBc();
-        allocationIndexes.add(new CpmDisk.EntryCoordinates(x.getAllocBlockPointer(), x.getIndex()));
-        blockPointers.addAll(x.getBlockPointers().stream().filter(p -> p != 0x00).toList());
+        entryBlocks[entryCount] = (int)x.getAllocBlockPointer();
+        entryIndexes[entryCount++] = x.getIndex();
+        for (int i = 0; i < x.getBlockPointerCount(); i++) {
+            if (x.getBlockPointer(i) != 0x00) {
+                blockPointers[blockCount++] = x.getBlockPointer(i);
+            }
+        }
     }
 
     /**
@@ -166,17 +282,26 @@ public class AllocationTableFile {
      * @return A list of block pointers.
      */
     public List<Long> getBlockPointers() {
-        return Collections.unmodifiableList(blockPointers);
-    }
-
-    List<CpmDisk.EntryCoordinates> getAllocationIndexes() {
-        return allocationIndexes;
+        var pointers = blockPointers;
+        var count = blockCount;
+        return new AbstractList<>() {
+            @Override
+            public Long get(int index) {
+                Objects.checkIndex(index, count);
+                return (long)pointers[index];
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
     }
 
     @Override
     public String toString() {
-        var hexValues = blockPointers.stream()
-                .map(x -> String.format("0x%04x", x))
+        var hexValues = Arrays.stream(blockPointers, 0, blockCount)
+                .mapToObj(x -> String.format("0x%04x", x))
                 .toArray();
 
         return String.format("Stat: 0x%02x, File name: %12s, record count: %6d, flags: %s, blocks: %s", stat, filename, recordCount, flags, Arrays.toString(hexValues));
@@ -0,0 +1,95 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * A size-bounded cache of reassembled blocks keyed by block pointer.
+ * The least recently used block is evicted once the cache is full.
+ * A block that is invalidated while it is being reassembled is not
+ * cached, so a read racing a write never leaves a stale block behind.
+ */
+final class BlockCache {
+
+    private final Map<Long, ByteBuffer> blocks;
+
+    private long generation;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity The maximum number of blocks to hold
+     */
+    BlockCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        blocks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets a block from the cache, reassembling and caching it on a miss.
+     *
+     * @param blockPointer The block
+     * @param loader Reassembles the block
+     * @return A read-only view of the block
+     */
+    ByteBuffer get(long blockPointer, @NotNull LongFunction<ByteBuffer> loader) {
+        long loadedGeneration;
+        synchronized (this) {
+            var block = blocks.get(blockPointer);
+            if (block != null) {
+                hits++;
+                return block.duplicate();
+            }
+            misses++;
+            loadedGeneration = generation;
+        }
+
+        // Reassemble outside the lock so that other blocks are served meanwhile
+        var block = loader.apply(blockPointer).asReadOnlyBuffer();
+        synchronized (this) {
+            if (generation == loadedGeneration) {
+                blocks.put(blockPointer, block);
+            }
+        }
+        return block.duplicate();
+    }
+
+    /**
+     * Drops a block from the cache after it has been written.
+     *
+     * @param blockPointer The block
+     */
+    synchronized void invalidate(long blockPointer) {
+        generation++;
+        blocks.remove(blockPointer);
+    }
+
+    /**
+     * Drops every block from the cache.
+     */
+    synchronized void clear() {
+        generation++;
+        blocks.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
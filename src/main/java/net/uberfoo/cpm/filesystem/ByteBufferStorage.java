@@ -0,0 +1,56 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A storage backed by a heap, direct or memory mapped byte buffer.
+ * The buffer is released by the garbage collector once it is no
+ * longer referenced, so closing the storage releases nothing.
+ * Use a {@link SegmentStorage} to unmap a file when it is closed.
+ */
+public class ByteBufferStorage implements DiskStorage {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a storage backed by the supplied buffer, from
+     * index 0 to its limit.
+     *
+     * @param buffer The buffer
+     */
+    public ByteBufferStorage(@NotNull ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public ByteBuffer slice(long address, int length) {
+        return buffer.slice(Math.toIntExact(address), length);
+    }
+
+    @Override
+    public long size() {
+        return buffer.limit();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    @Override
+    public void force(long address, int length) {
+        if (buffer instanceof MappedByteBuffer mapped) {
+            mapped.force(Math.toIntExact(address), length);
+        }
+    }
+
+    /**
+     * Does nothing, as a byte buffer cannot be released explicitly.
+     */
+    @Override
+    public void close() {
+    }
+}
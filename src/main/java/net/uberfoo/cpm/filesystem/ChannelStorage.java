@@ -0,0 +1,140 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * A read-only storage that reads a region of a file channel on
+ * demand. Nothing is read until a region is loaded, after which
+ * it is kept in memory. Memory is allocated in chunks as they are
+ * first loaded or viewed, so an image costs only what is read of
+ * it. Regions that were never loaded read as zeros. The channel
+ * is not closed with the storage.
+ */
+public class ChannelStorage implements DiskStorage {
+
+    private static final int REC_SZ = DiskParameterBlock.getRecordSize();
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final int size;
+    private final ByteBuffer[] chunks;
+    private final BitSet loadedRecords = new BitSet();
+
+    /**
+     * Creates a storage of a region of the supplied channel.
+     *
+     * @param channel The channel to read from
+     * @param offset The start of the region in the channel
+     * @param size The size of the region
+     */
+    public ChannelStorage(@NotNull FileChannel channel, long offset, int size) {
+        this.channel = channel;
+        this.offset = offset;
+        this.size = size;
+        this.chunks = new ByteBuffer[Math.ceilDiv(size, CHUNK_SIZE)];
+    }
+
+    /**
+     * Gets a read-only view of a region. A region that spans
+     * chunks is copied, which is safe as the storage never changes
+     * once loaded.
+     */
+    @Override
+    public ByteBuffer slice(long address, int length) {
+        Objects.checkFromIndexSize(address, length, size);
+        int start = (int)address;
+        int first = start / CHUNK_SIZE;
+        if ((start + length - 1) / CHUNK_SIZE <= first) {
+            return chunk(first).slice(start % CHUNK_SIZE, length).asReadOnlyBuffer();
+        }
+
+        var copy = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; ) {
+            int within = (start + i) % CHUNK_SIZE;
+            int run = Math.min(length - i, CHUNK_SIZE - within);
+            copy.put(i, chunk((start + i) / CHUNK_SIZE), within, run);
+            i += run;
+        }
+        return copy.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isLoadedOnDemand() {
+        return true;
+    }
+
+    /**
+     * Gets a chunk, allocating it if it was never used.
+     */
+    private synchronized ByteBuffer chunk(int index) {
+        if (chunks[index] == null) {
+            chunks[index] = ByteBuffer.allocate(Math.min(CHUNK_SIZE, size - index * CHUNK_SIZE));
+        }
+        return chunks[index];
+    }
+
+    /**
+     * Reads the records of a region that have not been read yet
+     * with positional reads of the channel.
+     *
+     * @param address The start of the region in bytes
+     * @param length The length of the region in bytes
+     * @throws IOException If the channel cannot be read
+     */
+    @Override
+    public synchronized void load(long address, int length) throws IOException {
+        int end = Math.toIntExact(Math.ceilDiv(address + length, REC_SZ));
+        for (int i = loadedRecords.nextClearBit((int)(address / REC_SZ)); i < end; ) {
+            int next = loadedRecords.nextSetBit(i);
+            int runEnd = next < 0 ? end : Math.min(next, end);
+            int from = i * REC_SZ;
+            int to = Math.min(runEnd * REC_SZ, size);
+
+            // Runs are split at chunk boundaries, which fall on records
+            for (int chunkStart = from; chunkStart < to; ) {
+                int chunkEnd = Math.min(to, (chunkStart / CHUNK_SIZE + 1) * CHUNK_SIZE);
+                var region = chunk(chunkStart / CHUNK_SIZE).slice(chunkStart % CHUNK_SIZE, chunkEnd - chunkStart);
+
+                // A region past the end of the file is left as zeros
+                int read = 0;
+                while (region.hasRemaining() && read >= 0) {
+                    read = channel.read(region, offset + chunkStart + region.position());
+                }
+                chunkStart = chunkEnd;
+            }
+            loadedRecords.set(i, runEnd);
+            i = loadedRecords.nextClearBit(runEnd);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void force(long address, int length) {
+    }
+
+    /**
+     * Releases the chunks read so far. The channel is left open.
+     */
+    @Override
+    public synchronized void close() {
+        Arrays.fill(chunks, null);
+        loadedRecords.clear();
+    }
+}
@@ -1,33 +1,47 @@
 package net.uberfoo.cpm.filesystem;
 
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static java.lang.Math.*;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.ReadOnlyFileSystemException;
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 /**
  * Represents a single CP/M format disk.
+ * <p>
+ * A disk may be shared between threads. Lookups and listings
+ * take a read lock on the directory and run in parallel, while
+ * creating and deleting files take the write lock only for as
+ * long as it takes to claim and write directory entries. Free
+ * blocks are claimed without locking, so the contents of new
+ * files are written while other threads read. The contents of
+ * a file that is deleted while it is being read are undefined.
  */
-public class CpmDisk {
+public class CpmDisk implements Closeable {
 
     private static final int REC_SZ = DiskParameterBlock.getRecordSize();
     private static final byte[] DELETE_FLAG = new byte[] {(byte)0xE5};
     private static final Logger LOG = LoggerFactory.getLogger(CpmDisk.class);
+    private static final int FILL_CHUNK_SIZE = 64 * 1024;
 
     /**
      * Represents a set of unique coordinates for a file allocation table entry.
@@ -37,9 +51,67 @@ public class CpmDisk {
      */
     protected record EntryCoordinates(long block, int index) {}
 
+    /**
+     * Key of the directory index.
+     *
+     * @param stat User number of the file.
+     * @param filename Normalized 8.3 name of the file.
+     */
+    private record DirectoryKey(int stat, String filename) {}
+
+    /**
+     * Describes a file to create as part of a batch.
+     *
+     * @param filename The complete name of the new file.
+     * @param stat The user number of the new file.
+     * @param flags The flags for the new file.
+     * @param contents The contents of the new file, from position to limit.
+     */
+    public record FileImport(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull ByteBuffer contents) {}
+
+    /**
+     * Adapts a byte buffer to a channel so that it can be
+     * written through the streaming path. Reading consumes
+     * the buffer.
+     *
+     * @param buffer The buffer to read from.
+     */
+    private record BufferChannel(ByteBuffer buffer) implements ReadableByteChannel {
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = min(buffer.remaining(), dst.remaining());
+            dst.put(dst.position(), buffer, buffer.position(), length);
+            dst.position(dst.position() + length);
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final DiskStorage storage;
+    private final int size;
     private final ByteBuffer buffer;
     private final DiskParameterBlock dpb;
-    private List<AllocationBlock> allocationBlocks;
+    private final SectorTranslationTable sectorTable;
+    private final ReadWriteLock directoryLock = new ReentrantReadWriteLock();
+    private DirectoryTable directory;
+    private DirectoryKey[] entryKeys;
+    private final AllocationBitmap allocationBitmap;
+    private final AllocationBitmap pendingBlocks;
+    private final BitSet dirtySectors = new BitSet();
+    private Map<DirectoryKey, int[]> directoryIndex;
+    private volatile BlockCache blockCache;
 
     /**
      * Creates a new disk with the supplied parameters
@@ -51,7 +123,39 @@ public class CpmDisk {
      * @throws IOException If there is a filesystem error.
      */
     public CpmDisk(DiskParameterBlock dpb, FileChannel channel) throws IOException {
-        this(dpb, channel.map(FileChannel.MapMode.READ_WRITE, channel.position(), dpb.getFilesystemSize()));
+        this(dpb, channel, channel.position());
+    }
+
+    /**
+     * Creates a new disk with the supplied parameters
+     * from the region of the supplied file channel
+     * starting at the supplied offset. This constructor
+     * will map just that region into memory, so the
+     * offset may be anywhere in a file of any size. The
+     * mapping is only released when the disk is closed, so
+     * a disk that is never closed stays mapped. If the
+     * channel is not open for writing, the disk is mapped
+     * read-only.
+     *
+     * @param dpb The disk parameters.
+     * @param channel The file channel of the disk image.
+     * @param offset The position of the filesystem in the file.
+     * @throws IOException If there is a filesystem error.
+     */
+    public CpmDisk(DiskParameterBlock dpb, FileChannel channel, long offset) throws IOException {
+        this(dpb, map(channel, offset, dpb.getFilesystemSize()));
+    }
+
+    /**
+     * Maps a region of a channel for writing, or for reading
+     * only if the channel cannot be written.
+     */
+    private static SegmentStorage map(FileChannel channel, long offset, long size) throws IOException {
+        try {
+            return new SegmentStorage(channel, FileChannel.MapMode.READ_WRITE, offset, size);
+        } catch (NonWritableChannelException e) {
+            return new SegmentStorage(channel, FileChannel.MapMode.READ_ONLY, offset, size);
+        }
     }
 
     /**
@@ -63,12 +167,50 @@ public class CpmDisk {
      * @throws IOException If there is a filesystem error.
      */
     public CpmDisk(DiskParameterBlock dpb, ByteBuffer buffer) throws IOException {
+        this(dpb, new ByteBufferStorage(buffer));
+    }
+
+    /**
+     * Creates a new disk with the supplied parameters
+     * from the supplied storage of a disk image. The
+     * storage is closed when the disk is closed. Only the
+     * start of the storage that holds the filesystem is used.
+     * A storage that is loaded on demand is only ever viewed
+     * a region at a time.
+     *
+     * @param dpb The disk parameters.
+     * @param storage The storage containing the disk image.
+     * @throws IOException If there is a filesystem error.
+     */
+    public CpmDisk(DiskParameterBlock dpb, DiskStorage storage) throws IOException {
         LOG.info("Loading CP/M filesystem.");
         this.dpb = dpb;
-        this.buffer = buffer;
+        this.storage = storage;
+        this.size = (int)min(storage.size(), (long)dpb.getFilesystemSize() + dpb.getOffsetBytes());
+        this.buffer = storage.isLoadedOnDemand() ? null : storage.slice(0, size);
+        this.sectorTable = dpb.getSectorTranslationTable();
+        this.allocationBitmap = new AllocationBitmap(dpb.storageSize() + 1);
+        this.pendingBlocks = new AllocationBitmap(dpb.storageSize() + 1);
         parseAllocationBlocks();
     }
 
+    /**
+     * Opens a disk read-only from the region of the supplied
+     * file channel starting at the supplied offset. Only the
+     * directory blocks are read when the disk is opened; the
+     * blocks of a file are read with positional reads of the
+     * channel the first time the file is read.
+     *
+     * @param dpb The disk parameters.
+     * @param channel The file channel of the disk image.
+     * @param offset The position of the filesystem in the file.
+     * @return A read-only CpmDisk instance.
+     * @throws IOException If there is a filesystem error.
+     */
+    public static CpmDisk openReadOnly(DiskParameterBlock dpb, FileChannel channel, long offset) throws IOException {
+        return new CpmDisk(dpb, new ChannelStorage(channel, offset, dpb.getFilesystemSize()));
+    }
+
     /**
      * Creates a new filesystem according to the supplied
      * disk parameters. The supplied byte buffer must be
@@ -89,7 +231,9 @@ public class CpmDisk {
         Arrays.fill(block, (byte)0xE5);
         IntStream.rangeClosed(0, dpb.storageSize())
                 .forEach(i -> buffer.put(block));
-        return new CpmDisk(dpb, buffer.slice(start, (int)dpb.getFilesystemSize()));
+        var disk = new CpmDisk(dpb, buffer.slice(start, (int)dpb.getFilesystemSize()));
+        disk.markDirty(0, dpb.getFilesystemSize());
+        return disk;
     }
 
     /**
@@ -106,29 +250,199 @@ public class CpmDisk {
         return makeFilesystem(dpb, ByteBuffer.allocate(dpb.getFilesystemSize()));
     }
 
-    private void parseAllocationBlocks() throws IOException {
-        allocationBlocks = new LinkedList<>();
-        int dirMask = (dpb.directoryAllocationBitmap1() << 8) + dpb.directoryAllocationBitmap2();
-        for(int i = 15 ; i >= 0 ; i--) {
-            int bit = dirMask & (1 << i);
-            if (bit > 0) {
-                readAllocBlock(i);
+    /**
+     * Creates a new filesystem according to the supplied
+     * disk parameters in a file, starting at the position
+     * of the supplied channel, and maps it into memory.
+     * Only the system tracks, the directory blocks and the
+     * supplied data blocks are written, see
+     * {@link #format(DiskParameterBlock, FileChannel, long, BitSet)}.
+     *
+     * @param dpb The disk parameters.
+     * @param channel The file channel of the disk image, open for reading and writing.
+     * @param dataBlocks The data blocks to fill with 0xE5.
+     * @return A CpmDisk instance representing the new filesystem.
+     * @throws IOException If there is a filesystem error.
+     */
+    public static CpmDisk makeFilesystem(DiskParameterBlock dpb, FileChannel channel, BitSet dataBlocks) throws IOException {
+        long offset = channel.position();
+        format(dpb, channel, offset, dataBlocks);
+        return new CpmDisk(dpb, channel, offset);
+    }
+
+    /**
+     * Writes a new filesystem according to the supplied disk
+     * parameters to a file at an offset. The system tracks,
+     * the directory blocks and the supplied data blocks are
+     * filled with 0xE5 using large gathered writes. The rest
+     * of the data area is never written, so it stays a sparse
+     * hole when the file is extended, and the file is only
+     * extended to the end of the filesystem with a single byte.
+     *
+     * @param dpb The disk parameters.
+     * @param channel The file channel of the disk image.
+     * @param offset The position of the filesystem in the file.
+     * @param dataBlocks The data blocks to fill with 0xE5.
+     * @throws IOException If the channel cannot be written.
+     */
+    public static void format(DiskParameterBlock dpb, FileChannel channel, long offset, BitSet dataBlocks) throws IOException {
+        LOG.info("Formatting CP/M filesystem with disk parameter block: {}", dpb);
+        var table = dpb.getSectorTranslationTable();
+        int sectorSize = dpb.sectorSize();
+
+        var blocks = new BitSet(dpb.storageSize() + 1);
+        blocks.or(dataBlocks);
+        blocks.clear(dpb.storageSize() + 1, max(blocks.length(), dpb.storageSize() + 1));
+        Arrays.stream(directoryBlocks(dpb)).forEach(blocks::set);
+
+        // Gather the physical sectors to fill, so that adjacent blocks are written together
+        var sectors = new BitSet(dpb.getFilesystemSize() / sectorSize);
+        sectors.set(0, dpb.getOffsetBytes() / sectorSize);
+        for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+            for (int i = 0; i < dpb.getBlockSectorCount(); ) {
+                int run = table.contiguousSectors(block, i);
+                int sector = table.address(block, i) / sectorSize;
+                sectors.set(sector, sector + run);
+                i += run;
             }
         }
+        int totalSectors = dpb.getFilesystemSize() / sectorSize;
+        sectors.clear(totalSectors, max(sectors.length(), totalSectors));
+
+        var fill = new byte[FILL_CHUNK_SIZE];
+        Arrays.fill(fill, DELETE_FLAG[0]);
+        for (int i = sectors.nextSetBit(0); i >= 0; ) {
+            int end = sectors.nextClearBit(i);
+            long length = (long)(end - i) * sectorSize;
+            var chunks = new ByteBuffer[toIntExact(ceilDiv(length, FILL_CHUNK_SIZE))];
+            for (int c = 0; c < chunks.length; c++) {
+                chunks[c] = ByteBuffer.wrap(fill, 0, (int)min(FILL_CHUNK_SIZE, length - (long)c * FILL_CHUNK_SIZE));
+            }
+            channel.position(offset + (long)i * sectorSize);
+            while (chunks[chunks.length - 1].hasRemaining()) {
+                channel.write(chunks);
+            }
+            i = sectors.nextSetBit(end);
+        }
+
+        long end = offset + dpb.getFilesystemSize();
+        if (channel.size() < end) {
+            channel.write(ByteBuffer.allocate(1), end - 1);
+        }
+        channel.position(end);
+    }
+
+    /**
+     * Gets the directory blocks of a disk in the order of
+     * the directory allocation bitmap.
+     */
+    private static int[] directoryBlocks(DiskParameterBlock dpb) {
+        int dirMask = (dpb.directoryAllocationBitmap1() << 8) + dpb.directoryAllocationBitmap2();
+        return IntStream.range(0, 16)
+                .filter(i -> (dirMask & (0x8000 >> i)) != 0)
+                .toArray();
+    }
+
+    private void parseAllocationBlocks() throws IOException {
+        allocationBitmap.clear();
+        directoryIndex = new LinkedHashMap<>();
+        var directoryBlocks = directoryBlocks(dpb);
+        directory = new DirectoryTable(directoryBlocks, dpb);
+        entryKeys = new DirectoryKey[directory.size()];
+
+        // Build the allocation bitmap and directory index from every valid entry
+        for (var block : directoryBlocks) {
+            load(block);
+            allocationBitmap.set(block, true);
+        }
+        for (int slot = 0; slot < directory.size(); slot++) {
+            directory.load(slot, entryView(slot));
+            trackEntry(slot, true);
+        }
+
+        // Blocks claimed by files that are still being written
+        allocationBitmap.or(pendingBlocks);
     }
 
     /**
-     * Refresh this disk by flushing to disk if this
+     * Refresh this disk by flushing the sectors written since
+     * the last refresh to disk if this is a memory mapped file.
+     * Nothing is flushed if nothing was written. The directory
+     * is kept current as entries are written, so it is not
+     * reparsed; use {@link #reload()} if the image was changed
+     * outside this instance.
+     *
+     * @throws IOException If an error occurs with the buffer
+     */
+    public void refresh() throws IOException {
+        flush();
+    }
+
+    /**
+     * Reload this disk by flushing to disk if this
      * is a memory mapped file. Then the allocation
      * table is reparsed from the buffer.
      *
      * @throws IOException If an error occurs with the buffer
      */
-    public void refresh() throws IOException {
-        if (buffer instanceof MappedByteBuffer mapped) {
-            mapped.force();
+    public void reload() throws IOException {
+        directoryLock.writeLock().lock();
+        try {
+            flush();
+            var cache = blockCache;
+            if (cache != null) {
+                cache.clear();
+            }
+            parseAllocationBlocks(); // Re-read the directory blocks
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether any sectors have been written since the last refresh.
+     *
+     * @return True if there are unflushed writes
+     */
+    public boolean isDirty() {
+        synchronized (dirtySectors) {
+            return !dirtySectors.isEmpty();
+        }
+    }
+
+    /**
+     * Closes this disk by flushing any dirty sectors and then
+     * closing its storage. The disk must not be used afterwards.
+     *
+     * @throws IOException If an error occurs with the storage
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        storage.close();
+    }
+
+    /**
+     * Forces the span from the first to the last dirty sector to
+     * the storage's device in a single call and clears the dirty
+     * sectors. Clean sectors within the span cost little to force,
+     * where every call costs a sync of the device.
+     */
+    private void flush() throws IOException {
+        synchronized (dirtySectors) {
+            if (dirtySectors.isEmpty()) {
+                return;
+            }
+            int address = dirtySectors.nextSetBit(0) * dpb.sectorSize();
+            storage.force(address, min(dirtySectors.length() * dpb.sectorSize(), size) - address);
+            dirtySectors.clear();
+        }
+    }
+
+    private void markDirty(int address, int length) {
+        synchronized (dirtySectors) {
+            dirtySectors.set(address / dpb.sectorSize(), ceilDiv(address + length, dpb.sectorSize()));
         }
-        parseAllocationBlocks(); // Re-read the directory blocks
     }
 
     /**
@@ -141,35 +455,39 @@ public class CpmDisk {
     }
 
     /**
-     * Gets a stream of all the files on this disk.
+     * Gets a stream of all the files on this disk, as they
+     * were when this method was called.
      *
      * @return A stream of files
      */
     public Stream<AllocationTableFile> getFilesStream() {
-        return fileEntriesByName()
-                .values().stream()
-                .map(Map::values)
-                .flatMap(Collection::stream)
-                .map(entries -> new AllocationTableFile(entries, dpb, this));
+        return readDirectory(() -> directoryIndex.values().stream()
+                .map(this::newFile)
+                .toList())
+                .stream();
     }
 
+    /**
+     * Gets a view of the whole disk image. The view is valid
+     * until the disk is closed; a disk mapped from a file channel
+     * is unmapped then and the view throws
+     * {@link IllegalStateException} once used.
+     *
+     * @return A buffer sharing the memory of the image
+     * @throws UnsupportedOperationException If the image is read on
+     * demand, see {@link #openReadOnly(DiskParameterBlock, FileChannel, long)},
+     * as the regions that were never read would be missing from the view
+     */
     public ByteBuffer getBuffer() {
+        if (buffer == null) {
+            throw new UnsupportedOperationException("The disk image is read on demand");
+        }
         return buffer.duplicate();
     }
 
-    private Map<Integer, Map<String, List<AllocationTableEntry>>> fileEntriesByName() {
-        return validEntries()
-                .collect(Collectors.groupingBy(x -> x.getStat(), Collectors.groupingBy(x -> x.getFullFilename())));
-    }
-
-    @Contract(pure = true)
-    private static @NotNull Predicate<AllocationTableEntry> validEntriesOnly() {
-        return x -> x.getStat() != 0xE5;
-    }
-
-    private Stream<AllocationTableEntry> allTables() {
-        return allocationBlocks.stream()
-                .flatMap(block -> Stream.of(block.getAllocationTable()));
+    private IntStream usedSlots() {
+        return IntStream.range(0, directory.size())
+                .filter(directory::isUsed);
     }
 
     /**
@@ -178,13 +496,11 @@ public class CpmDisk {
      * @return A stream of block pointers
      */
     public Stream<Long> getUsedBlocks() {
-        return validEntries()
-                .flatMap(x -> x.getBlockPointers().stream());
-    }
-
-    private Stream<AllocationTableEntry> validEntries() {
-        return allTables()
-                .filter(validEntriesOnly());
+        return readDirectory(() -> usedSlots()
+                .flatMap(x -> IntStream.range(0, directory.pointersPerEntry()).map(i -> directory.blockPointer(x, i)))
+                .mapToObj(x -> (long)x)
+                .toList())
+                .stream();
     }
 
     /**
@@ -194,12 +510,19 @@ public class CpmDisk {
      * @return A stream of block pointers
      */
     public Stream<Long> getUnusedBlocks() {
-        var usedBlocks = getUsedBlocks().toList();
-        var usedAllocBlocks = allocationBlocks.stream()
-                .map(x -> x.getIndex()).toList();
-        return LongStream.rangeClosed(0, dpb.storageSize())
-                .filter(x -> !usedBlocks.contains(x) && !usedAllocBlocks.contains(x))
-                .boxed();
+        return IntStream.iterate(allocationBitmap.nextClearBit(0),
+                        x -> x <= dpb.storageSize(),
+                        x -> allocationBitmap.nextClearBit(x + 1))
+                .mapToObj(x -> (long)x);
+    }
+
+    /**
+     * Counts the unused blocks on this disk.
+     *
+     * @return A number of blocks
+     */
+    public int getUnusedBlockCount() {
+        return dpb.storageSize() + 1 - allocationBitmap.cardinality();
     }
 
     /**
@@ -209,8 +532,10 @@ public class CpmDisk {
      * @return A stream of entry coordinates
      */
     public Stream<EntryCoordinates> getUsedEntries() {
-        return allocationBlocks.stream()
-                .flatMap(x -> x.getUsedEntries().map(y -> new EntryCoordinates(x.getIndex(), y)));
+        return readDirectory(() -> usedSlots()
+                .mapToObj(x -> new EntryCoordinates(directory.block(x), directory.index(x)))
+                .toList())
+                .stream();
     }
 
     /**
@@ -220,8 +545,22 @@ public class CpmDisk {
      * @return A stream of entry coordinates
      */
     public Stream<EntryCoordinates> getUnusedEntries() {
-        return allocationBlocks.stream()
-                .flatMap(x -> x.getUnusedEntries().map(y -> new EntryCoordinates(x.getIndex(), y)));
+        return readDirectory(() -> IntStream.range(0, directory.size())
+                .filter(x -> !directory.isUsed(x))
+                .mapToObj(x -> new EntryCoordinates(directory.block(x), directory.index(x)))
+                .toList())
+                .stream();
+    }
+
+    /**
+     * Checks whether this disk was opened read-only. Creating,
+     * writing and deleting files on a read-only disk throws
+     * {@link ReadOnlyFileSystemException}.
+     *
+     * @return True if the disk cannot be written
+     */
+    public boolean isReadOnly() {
+        return storage.isReadOnly();
     }
 
     /**
@@ -233,6 +572,44 @@ public class CpmDisk {
         return dpb;
     }
 
+    /**
+     * Sets the number of reassembled blocks to keep in memory.
+     * Blocks whose sectors are scattered by a skew table are
+     * read from the cache instead of from the sectors of the
+     * disk, while contiguous blocks are always read in place.
+     * The cache is disabled by default. Changing the size
+     * discards the cached blocks and counters.
+     *
+     * @param blocks The maximum number of blocks, or zero to disable the cache.
+     */
+    public void setBlockCacheSize(int blocks) {
+        if (blocks < 0) {
+            throw new IllegalArgumentException("Negative cache size: " + blocks);
+        }
+        blockCache = blocks == 0 ? null : new BlockCache(blocks);
+    }
+
+    /**
+     * Gets the number of block reads served from the block cache.
+     *
+     * @return A count of hits, or zero if the cache is disabled.
+     */
+    public long getBlockCacheHits() {
+        var cache = blockCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * Gets the number of block reads that reassembled a block
+     * from its sectors to fill the block cache.
+     *
+     * @return A count of misses, or zero if the cache is disabled.
+     */
+    public long getBlockCacheMisses() {
+        var cache = blockCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
     /**
      * Gets the size of the filesystem according
      * to the disk parameters.
@@ -252,10 +629,8 @@ public class CpmDisk {
      * @return An optional with the file if found.
      */
     public Optional<AllocationTableFile> findFile(@NotNull String filename, int stat) {
-        return getFilesStream()
-                .filter(x -> x.getFilename().equalsIgnoreCase(filename))
-                .filter(x -> x.getStat() == stat)
-                .findFirst();
+        return readDirectory(() -> Optional.ofNullable(directoryIndex.get(directoryKey(stat, filename)))
+                .map(this::newFile));
     }
 
     /**
@@ -270,61 +645,504 @@ public class CpmDisk {
      * @throws FileAlreadyExistsException If this disk already contains a file with the supplied name.
      */
     public AllocationTableFile createFile(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull ByteBuffer buffer) throws IOException {
-        if (findFile(filename, stat).isPresent()) {
+        return createFile(filename, stat, flags, new BufferChannel(buffer));
+    }
+
+    /**
+     * Creates a new file on this disk from an input stream
+     * of unknown length.
+     *
+     * @param filename The complete name of the new file
+     * @param stat The user number of the new file
+     * @param flags The flags for the new file
+     * @param in The stream of contents of the new file
+     * @return A file entry
+     * @throws IOException For general I/O errors
+     * @throws FileAlreadyExistsException If this disk already contains a file with the supplied name.
+     */
+    public AllocationTableFile createFile(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull InputStream in) throws IOException {
+        return createFile(filename, stat, flags, Channels.newChannel(in));
+    }
+
+    /**
+     * Creates a new file on this disk from a channel of unknown
+     * length. Blocks are claimed as the channel is read and the
+     * contents are read directly into the sectors of the disk
+     * without holding the directory lock. The directory entries
+     * are only allocated and written once the channel is exhausted.
+     *
+     * @param filename The complete name of the new file
+     * @param stat The user number of the new file
+     * @param flags The flags for the new file
+     * @param channel The contents of the new file
+     * @return A file entry
+     * @throws IOException For general I/O errors
+     * @throws FileAlreadyExistsException If this disk already contains a file with the supplied name.
+     */
+    public AllocationTableFile createFile(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull ReadableByteChannel channel) throws IOException {
+        return createFile(filename, stat, flags, channel, false);
+    }
+
+    /**
+     * Creates a file on this disk, replacing any file with the same
+     * name. The old file is only deleted once the contents of the new
+     * file have been written, in the same directory update that adds
+     * the new file, so the old file is kept if the new one cannot be
+     * created.
+     *
+     * @param filename The complete name of the file
+     * @param stat The user number of the file
+     * @param flags The flags for the file
+     * @param buffer The contents of the file
+     * @return A file entry
+     * @throws IOException For general I/O errors
+     */
+    public AllocationTableFile replaceFile(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull ByteBuffer buffer) throws IOException {
+        return replaceFile(filename, stat, flags, new BufferChannel(buffer));
+    }
+
+    /**
+     * Creates a file on this disk from a channel of unknown length,
+     * replacing any file with the same name. The old file is only
+     * deleted once the channel is exhausted, see
+     * {@link #replaceFile(String, int, BitSet, ByteBuffer)}.
+     *
+     * @param filename The complete name of the file
+     * @param stat The user number of the file
+     * @param flags The flags for the file
+     * @param channel The contents of the file
+     * @return A file entry
+     * @throws IOException For general I/O errors
+     */
+    public AllocationTableFile replaceFile(@NotNull String filename, int stat, @NotNull BitSet flags, @NotNull ReadableByteChannel channel) throws IOException {
+        return createFile(filename, stat, flags, channel, true);
+    }
+
+    private AllocationTableFile createFile(String filename, int stat, BitSet flags, ReadableByteChannel channel, boolean replace) throws IOException {
+        ensureWritable();
+        if (!replace && findFile(filename, stat).isPresent()) {
             throw new FileAlreadyExistsException(stat + ": " + filename);
         }
 
-        var size = buffer.capacity();
-        var numBlocks = ceilDiv(size, dpb.getBlockSize());
-        var numExtents = ceilDiv(numBlocks, 8);
-        var block = ByteBuffer.allocate(dpb.getBlockSize());
+        var blocks = new ArrayList<DiskBlock>();
+        var claimed = new BitSet();
+        boolean committed = false;
+        try {
+            while (true) {
+                int blockPtr = claimBlock();
+                if (blockPtr < 0) {
+                    if (channel.read(ByteBuffer.allocate(1)) <= 0) {
+                        break;
+                    }
+                    throw new IOException("No space left on disk!");
+                }
+                claimed.set(blockPtr);
+
+                int length = fillBlock(blockPtr, channel);
+                if (length == 0) {
+                    // Nothing was left for the block
+                    var unused = new BitSet();
+                    unused.set(blockPtr);
+                    releaseBlocks(unused);
+                    claimed.clear(blockPtr);
+                    break;
+                }
+                blocks.add(new DiskBlock(blockPtr, dpb, length));
+
+                if (length < dpb.getBlockSize()) {
+                    break;
+                }
+            }
+
+            directoryLock.writeLock().lock();
+            try {
+                var replaced = directoryIndex.get(directoryKey(stat, filename));
+                if (replaced != null) {
+                    if (!replace) {
+                        throw new FileAlreadyExistsException(stat + ": " + filename);
+                    }
+                    // Make sure the new entries fit before the old ones are given up
+                    int needed = max(1, ceilDiv(blocks.size(), dpb.getBlockPointersPerEntry()));
+                    if (getUnusedEntries().count() + replaced.length < needed) {
+                        throw new IOException("No directory entries left on disk!");
+                    }
+                    newFile(replaced).delete();
+                }
+
+                // An empty file still takes up a single entry
+                var freeEntries = getUnusedEntries().iterator();
+                var entries = new ArrayList<AllocationTableEntry>();
+                entries.add(nextEntry(freeEntries, 0, filename, stat, flags));
+                for (var block : blocks) {
+                    var entry = entries.get(entries.size() - 1);
+                    if (entry.isFull()) {
+                        entry = nextEntry(freeEntries, entries.size(), filename, stat, flags);
+                        entries.add(entry);
+                    }
+                    entry.addBlock(block);
+                }
+
+                // Write the file entries
+                for (var x : entries) {
+                    x.writeEntry(this);
+                }
+                claimed.stream().forEach(x -> pendingBlocks.set(x, false));
+                committed = true;
+
+                return new AllocationTableFile(entries, dpb, this);
+            } finally {
+                directoryLock.writeLock().unlock();
+            }
+        } finally {
+            // Any failure, checked or not, gives back the blocks claimed so far
+            if (!committed) {
+                releaseBlocks(claimed);
+            }
+        }
+    }
+
+    /**
+     * Claims the first free block for a file that is being written.
+     * The block stays pending until it is committed to the directory
+     * so that a reload does not hand it out again.
+     *
+     * @return A block pointer, or -1 if the disk is full
+     */
+    private int claimBlock() {
+        directoryLock.readLock().lock();
+        try {
+            int blockPtr = allocationBitmap.claim(0);
+            if (blockPtr >= 0) {
+                pendingBlocks.set(blockPtr, true);
+            }
+            return blockPtr;
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    private void releaseBlocks(BitSet blocks) {
+        directoryLock.readLock().lock();
+        try {
+            blocks.stream().forEach(x -> {
+                allocationBitmap.set(x, false);
+                pendingBlocks.set(x, false);
+            });
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
 
-        var blocks = getUnusedBlocks().limit(numBlocks).toList();
+    /**
+     * Creates a batch of new files on this disk. Space for the whole
+     * batch is planned up front so either every file is created or,
+     * if the disk lacks blocks or directory entries, none are. The
+     * data blocks are written in ascending block order and the
+     * directory entries are committed in a single pass, followed by
+     * a single force of the sectors written.
+     *
+     * @param files The files to create
+     * @return The new file entries, in the order supplied
+     * @throws IOException For general I/O errors or if the disk lacks space
+     * @throws FileAlreadyExistsException If a file already exists or is named twice in the batch.
+     */
+    public List<AllocationTableFile> createFiles(@NotNull Collection<FileImport> files) throws IOException {
+        ensureWritable();
+        directoryLock.writeLock().lock();
+        try {
+            return createFilesLocked(files);
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    private List<AllocationTableFile> createFilesLocked(Collection<FileImport> files) throws IOException {
+        var keys = new HashSet<DirectoryKey>();
+        int totalBlocks = 0;
+        int totalEntries = 0;
+        for (var file : files) {
+            var key = directoryKey(file.stat(), file.filename());
+            if (directoryIndex.containsKey(key) || !keys.add(key)) {
+                throw new FileAlreadyExistsException(file.stat() + ": " + file.filename());
+            }
+            var numBlocks = ceilDiv(file.contents().remaining(), dpb.getBlockSize());
+            totalBlocks += numBlocks;
+            totalEntries += max(1, ceilDiv(numBlocks, dpb.getBlockPointersPerEntry()));
+        }
 
-        if (blocks.size() < numBlocks) {
+        if (totalBlocks > getUnusedBlockCount()) {
             throw new IOException("No space left on disk!");
         }
+        var freeEntries = getUnusedEntries().limit(totalEntries).toList();
+        if (freeEntries.size() < totalEntries) {
+            throw new IOException("No directory entries left on disk!");
+        }
+
+        // Free blocks are handed out in ascending order, so the data is written in disk order
+        var freeEntryIt = freeEntries.iterator();
+        var batch = new ArrayList<List<AllocationTableEntry>>(files.size());
+        int blockPtr = -1;
+        for (var file : files) {
+            var channel = new BufferChannel(file.contents());
+            var entries = new ArrayList<AllocationTableEntry>();
+            entries.add(nextEntry(freeEntryIt, 0, file.filename(), file.stat(), file.flags()));
+
+            while (file.contents().hasRemaining()) {
+                blockPtr = allocationBitmap.nextClearBit(blockPtr + 1);
+                var length = fillBlock(blockPtr, channel);
+
+                var entry = entries.get(entries.size() - 1);
+                if (entry.isFull()) {
+                    entry = nextEntry(freeEntryIt, entries.size(), file.filename(), file.stat(), file.flags());
+                    entries.add(entry);
+                }
+                entry.addBlock(new DiskBlock(blockPtr, dpb, length));
+            }
+            batch.add(entries);
+        }
+
+        // Commit the directory
+        var created = new ArrayList<AllocationTableFile>(batch.size());
+        for (var entries : batch) {
+            for (var entry : entries) {
+                entry.writeEntry(this);
+            }
+            created.add(new AllocationTableFile(entries, dpb, this));
+        }
+        flush();
+
+        return created;
+    }
+
+    private AllocationTableEntry nextEntry(Iterator<EntryCoordinates> freeEntries, int extent, String filename, int stat, BitSet flags) throws IOException {
+        if (!freeEntries.hasNext()) {
+            throw new IOException("No directory entries left on disk!");
+        }
+        var x = freeEntries.next();
+        return new AllocationTableEntry(x.block(), x.index(), stat, extent, filename, flags, dpb);
+    }
+
+    /**
+     * Writes to a file at a position, growing the file as needed.
+     * The last extent is filled before new extents are allocated,
+     * the bytes are copied straight into the sectors that hold them
+     * and only the directory entries that change are rewritten.
+     * An empty write never grows the file.
+     *
+     * @return The number of bytes written
+     * @throws IOException If the disk lacks space or directory entries, or the file has holes
+     */
+    int writeFile(@NotNull AllocationTableFile file, long position, @NotNull ByteBuffer src) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        ensureWritable();
+        if (!src.hasRemaining()) {
+            return 0;
+        }
+
+        directoryLock.writeLock().lock();
+        try {
+            var key = directoryKey(file.getStat(), file.getFilename());
+            var entries = fileEntries(file, key);
+            long oldSize = fileSize(entries);
+            var blocks = fileBlocks(file, entries);
+
+            int length = src.remaining();
+            int blockSize = dpb.getBlockSize();
+            int pointersPerEntry = dpb.getBlockPointersPerEntry();
+            long newSize = max(oldSize, ceilDiv(position + length, REC_SZ) * REC_SZ);
+            int oldBlocks = blocks.size();
+            int newBlocks = toIntExact(ceilDiv(newSize, blockSize));
+            int newEntries = max(1, ceilDiv(newBlocks, pointersPerEntry));
 
-        int ex = 0;
+            var claimed = new BitSet();
+            boolean committed = false;
+            try {
+                while (blocks.size() < newBlocks) {
+                    int blockPtr = claimBlock();
+                    if (blockPtr < 0) {
+                        throw new IOException("No space left on disk!");
+                    }
+                    claimed.set(blockPtr);
+                    blocks.add(blockPtr);
+                }
+                var freeEntries = getUnusedEntries().limit(max(0, newEntries - entries.size())).toList();
+                if (entries.size() + freeEntries.size() < newEntries) {
+                    throw new IOException("No directory entries left on disk!");
+                }
 
-        // Write the blocks to disk
-        for (Long blockPtr : blocks) {
-            block.clear();
+                // Zero the space past the old end of the file before writing into it
+                if (newSize > oldSize) {
+                    var zeros = new byte[blockSize];
+                    for (long i = oldSize; i < (long)newBlocks * blockSize; ) {
+                        var fill = ByteBuffer.wrap(zeros, 0, (int)min(blockSize - i % blockSize, (long)newBlocks * blockSize - i));
+                        i += fill.remaining();
+                        writeFileRange(blocks, i - fill.remaining(), fill);
+                    }
+                }
+                writeFileRange(blocks, position, src);
 
-            // Copy bytes until either block is full or there are no more bytes
-            while (block.remaining() > 0 && buffer.hasRemaining()) {
-                block.put(buffer.get());
+                if (newSize > oldSize) {
+                    // Entries before the one holding the old last block are unchanged
+                    int firstChanged = oldBlocks == 0 ? 0 : (oldBlocks - 1) / pointersPerEntry;
+                    writeEntries(file, entries, freeEntries, blocks, firstChanged, newSize);
+                    claimed.stream().forEach(x -> pendingBlocks.set(x, false));
+                }
+                committed = true;
+            } finally {
+                // Any failure, checked or not, gives back the blocks claimed so far
+                if (!committed) {
+                    releaseBlocks(claimed);
+                }
             }
 
-            // Fill the remaining buffer with 0's
-            while (block.remaining() > 0) {
-                block.put((byte) 0x00);
+            file.reload(Arrays.stream(directoryIndex.get(key)).mapToObj(this::entryView).toList());
+            return length;
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Shrinks a file to a size, rounded up to a whole record. The
+     * blocks past the new end of the file are freed, the entry that
+     * holds the new last block is rewritten and the entries after
+     * it are deleted. A file is never grown.
+     *
+     * @throws IOException If the file has holes
+     */
+    void truncateFile(@NotNull AllocationTableFile file, long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        ensureWritable();
+
+        directoryLock.writeLock().lock();
+        try {
+            var key = directoryKey(file.getStat(), file.getFilename());
+            var entries = fileEntries(file, key);
+            long newSize = ceilDiv(size, REC_SZ) * REC_SZ;
+            if (newSize >= fileSize(entries)) {
+                return;
             }
-            block.rewind();
-            writeBlock(blockPtr, block);
+
+            var blocks = fileBlocks(file, entries);
+            int newBlocks = toIntExact(ceilDiv(newSize, dpb.getBlockSize()));
+            int newEntries = max(1, ceilDiv(newBlocks, dpb.getBlockPointersPerEntry()));
+            for (var entry : entries.subList(newEntries, entries.size())) {
+                deleteAllocEntry(entry.getAllocBlockPointer(), entry.getIndex());
+            }
+            writeEntries(file, entries.subList(0, newEntries), List.of(), blocks, newEntries - 1, newSize);
+
+            file.reload(Arrays.stream(directoryIndex.get(key)).mapToObj(this::entryView).toList());
+        } finally {
+            directoryLock.writeLock().unlock();
         }
+    }
 
-        var it = blocks.iterator();
-        var entries = new ArrayList<AllocationTableEntry>(numExtents);
+    /**
+     * Gets the entries of a file in extent order.
+     */
+    private List<AllocationTableEntry> fileEntries(AllocationTableFile file, DirectoryKey key) throws FileNotFoundException {
+        var slots = directoryIndex.get(key);
+        if (slots == null) {
+            throw new FileNotFoundException(file.getStat() + ": " + file.getFilename());
+        }
+        return Arrays.stream(slots)
+                .mapToObj(this::entryView)
+                .sorted(Comparator.comparingInt(AllocationTableEntry::getExtent))
+                .toList();
+    }
 
-        for (var x : getUnusedEntries().limit(numExtents).toList()) {
-            var entry = new AllocationTableEntry(x.block, x.index(), stat, ex++, filename, flags, dpb);
-            IntStream.range(0, 8)
-                    .forEachOrdered(i -> {
-                        if (it.hasNext()) {
-                            var next = it.next();
-                            entry.addBlock(new DiskBlock(next, dpb, (!it.hasNext()) ? size % dpb.getBlockSize() : dpb.getBlockSize()));
-                        }
-                    });
-            entries.add(entry);
+    private static long fileSize(List<AllocationTableEntry> entries) {
+        return entries.stream()
+                .mapToLong(x -> (long)x.getRecordCount() * REC_SZ)
+                .sum();
+    }
+
+    /**
+     * Gets the blocks of a file in order. The entries of a file are
+     * rewritten as if every extent before the last were full, so a
+     * file with holes, as random access writes leave them, is refused
+     * rather than having its later blocks moved to earlier offsets.
+     */
+    private List<Integer> fileBlocks(AllocationTableFile file, List<AllocationTableEntry> entries) throws IOException {
+        int fullRecords = dpb.getBlockRecordCount() * dpb.getBlockPointersPerEntry();
+        var blocks = new ArrayList<Integer>();
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            boolean last = i == entries.size() - 1;
+            int used = 0;
+            boolean ended = false;
+            for (int j = 0; j < entry.getBlockPointerCount(); j++) {
+                if (entry.getBlockPointer(j) == 0) {
+                    ended = true;
+                } else if (ended) {
+                    throw holes(file);
+                } else {
+                    blocks.add(entry.getBlockPointer(j));
+                    used++;
+                }
+            }
+            if (entry.getExtent() != i
+                    || (!last && entry.getRecordCount() < fullRecords)
+                    || used < ceilDiv(entry.getRecordCount(), dpb.getBlockRecordCount())) {
+                throw holes(file);
+            }
         }
+        return blocks;
+    }
+
+    private static IOException holes(AllocationTableFile file) {
+        return new IOException("Files with holes cannot be written in place: " + file.getStat() + ": " + file.getFilename());
+    }
 
-        // Write the file entries
-        for (var entry : entries) {
+    /**
+     * Rewrites the entries of a file from an extent onwards to hold
+     * the first blocks of the file up to a size. Entries past the
+     * existing ones are written into the supplied free entries.
+     * Rewriting an entry frees the blocks it no longer points to.
+     */
+    private void writeEntries(AllocationTableFile file, List<AllocationTableEntry> entries, List<EntryCoordinates> freeEntries,
+                              List<Integer> blocks, int from, long size) throws IOException {
+        int blockSize = dpb.getBlockSize();
+        int pointersPerEntry = dpb.getBlockPointersPerEntry();
+        int usedBlocks = toIntExact(ceilDiv(size, blockSize));
+        int usedEntries = max(1, ceilDiv(usedBlocks, pointersPerEntry));
+        var flags = entries.get(0).getFlags();
+        for (int i = from; i < usedEntries; i++) {
+            var coordinates = i < entries.size()
+                    ? new EntryCoordinates(entries.get(i).getAllocBlockPointer(), entries.get(i).getIndex())
+                    : freeEntries.get(i - entries.size());
+            var entry = new AllocationTableEntry(coordinates.block(), coordinates.index(),
+                    file.getStat(), i, file.getFilename(), flags, dpb);
+            for (int j = i * pointersPerEntry; j < min(usedBlocks, (i + 1) * pointersPerEntry); j++) {
+                entry.addBlock(new DiskBlock(blocks.get(j), dpb, (int)min(blockSize, size - (long)j * blockSize)));
+            }
             entry.writeEntry(this);
         }
+    }
 
-        return new AllocationTableFile(entries, dpb, this);
+    /**
+     * Copies a buffer into the blocks of a file, starting at a
+     * position in the file, one contiguous run of sectors at a time.
+     */
+    private void writeFileRange(List<Integer> blocks, long position, ByteBuffer src) {
+        int blockSize = dpb.getBlockSize();
+        while (src.hasRemaining()) {
+            int blockPtr = blocks.get(toIntExact(position / blockSize));
+            int offset = (int)(position % blockSize);
+            int sector = offset / dpb.sectorSize();
+
+            var slice = sliceWritable(blockPtr, sector);
+            int length = min(slice.capacity() - offset % dpb.sectorSize(), src.remaining());
+            slice.put(offset % dpb.sectorSize(), src, src.position(), length);
+            src.position(src.position() + length);
+            markDirty(getPhysicalAddress(blockPtr, sector) + offset % dpb.sectorSize(), length);
+            invalidate(blockPtr);
+            position += length;
+        }
     }
 
     /**
@@ -338,43 +1156,74 @@ public class CpmDisk {
      * @throws FileNotFoundException If no file is found with the supplied name and user number.
      */
     public void deleteFile(@NotNull String filename, int stat) throws IOException {
-        var file = getFilesStream()
-                .filter(x -> x.getFilename().equalsIgnoreCase(filename))
-                .filter(x -> x.getStat() == stat)
-                .findFirst().orElseThrow(() -> new FileNotFoundException(stat + ": " + filename));
+        ensureWritable();
+        directoryLock.writeLock().lock();
+        try {
+            var file = findFile(filename, stat)
+                    .orElseThrow(() -> new FileNotFoundException(stat + ": " + filename));
 
-        file.delete();
+            file.delete();
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
         refresh();
     }
 
     /**
-     * Gets the list of allocation blocks on this disk.
+     * Gets the list of allocation blocks on this disk. The blocks
+     * are views of the directory created on each call.
      *
      * @return A list of blocks
      */
     public List<AllocationBlock> getAllocationBlocks() {
-        return allocationBlocks;
+        return readDirectory(() -> Arrays.stream(directory.getDirectoryBlocks())
+                .mapToObj(x -> new AllocationBlock(x, i -> region(getAllocEntryAddress(x, i), AllocationBlock.ENTRY_SIZE), dpb))
+                .toList());
     }
 
+    /**
+     * Writes a complete block, one contiguous run of sectors at a time.
+     */
     void writeBlock(long blockPointer, @NotNull ByteBuffer block) throws IOException {
-        for (int i = 0; i < dpb.getBlockSectorCount(); i++) {
+        for (int i = 0; i < dpb.getBlockSectorCount(); ) {
             int physicalAddress = getPhysicalAddress(blockPointer, i);
-            buffer.put(physicalAddress, block, i * dpb.sectorSize(), dpb.sectorSize());
+            int length = sectorTable.contiguousSectors(blockPointer, i) * dpb.sectorSize();
+            region(physicalAddress, length).put(0, block, i * dpb.sectorSize(), length);
+            markDirty(physicalAddress, length);
+            i += length / dpb.sectorSize();
         }
+        invalidate(blockPointer);
     }
 
     public void writeBootTracks(@NotNull ByteBuffer bootTracks) throws IOException {
+        ensureWritable();
         if (dpb.getOffsetBytes() <= 0) {
             throw new IOException("Disk has no boot sector.");
         }
-        buffer.put(0, bootTracks, 0, Math.min(dpb.getOffsetBytes(), bootTracks.limit()));
+        var length = Math.min(dpb.getOffsetBytes(), bootTracks.limit());
+        region(0, length).put(0, bootTracks, 0, length);
+        markDirty(0, length);
     }
 
     public void writeAllocEntry(long allocBlockPointer, int index, byte[] entry) {
-        var offset = AllocationBlock.ENTRY_SIZE * index;
-        var i = Math.floorDiv(offset, dpb.sectorSize());
-        offset = offset % dpb.sectorSize();
-        buffer.put(getPhysicalAddress(allocBlockPointer, i) + offset, entry);
+        ensureWritable();
+        directoryLock.writeLock().lock();
+        try {
+            var slot = directory.slot(allocBlockPointer, index);
+            if (slot >= 0) {
+                trackEntry(slot, false);
+            }
+            var address = getAllocEntryAddress(allocBlockPointer, index);
+            region(address, entry.length).put(0, entry);
+            markDirty(address, entry.length);
+            invalidate(allocBlockPointer);
+            if (slot >= 0) {
+                directory.load(slot, entryView(slot));
+                trackEntry(slot, true);
+            }
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
     }
 
     void deleteAllocEntry(long allocBlockPointer, int index) {
@@ -382,32 +1231,221 @@ public class CpmDisk {
     }
 
     /**
-     * Reassembles a complete block from records based on skew table
+     * Fills the sectors of a block straight from a channel until
+     * the block is full or the channel is exhausted. The remainder
+     * of a partially filled block is filled with zeros.
+     *
+     * @return The number of bytes read from the channel
+     */
+    private int fillBlock(long blockPointer, ReadableByteChannel channel) throws IOException {
+        int length = 0;
+        boolean eof = false;
+        for (int i = 0; i < dpb.getBlockSectorCount(); ) {
+            var slice = sliceWritable(blockPointer, i);
+            i += slice.capacity() / dpb.sectorSize();
+
+            while (!eof && slice.hasRemaining()) {
+                eof = channel.read(slice) < 0;
+            }
+            length += slice.position();
+
+            if (length == 0) {
+                return 0;
+            }
+            slice.put(new byte[slice.remaining()]);
+        }
+        for (int i = 0; i < dpb.getBlockSectorCount(); ) {
+            int run = sectorTable.contiguousSectors(blockPointer, i);
+            markDirty(getPhysicalAddress(blockPointer, i), run * dpb.sectorSize());
+            i += run;
+        }
+        invalidate(blockPointer);
+        return length;
+    }
+
+    /**
+     * Reassembles a complete block from records based on skew table,
+     * one contiguous run of sectors at a time.
      *
      * @return A block sized buffer
      */
-    ByteBuffer readBlock(long blockPointer) {
+    private ByteBuffer assembleBlock(long blockPointer) {
+        loadData(blockPointer);
         var outBuff = ByteBuffer.allocate(dpb.getBlockSize());
-        for (int i = 0; i < dpb.getBlockSectorCount(); i++) {
+        for (int i = 0; i < dpb.getBlockSectorCount(); ) {
             var address = getPhysicalAddress(blockPointer, i);
-            outBuff.put(buffer.slice(address, dpb.sectorSize()));
+            int length = sectorTable.contiguousSectors(blockPointer, i) * dpb.sectorSize();
+            outBuff.put(i * dpb.sectorSize(), region(address, length), 0, length);
+            i += length / dpb.sectorSize();
+        }
+        return outBuff;
+    }
+
+    /**
+     * Runs a query of the directory while holding the read lock.
+     * The query must not return a lazy view of the directory.
+     */
+    private <T> T readDirectory(Supplier<T> query) {
+        directoryLock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates a view of the directory entry in a slot.
+     */
+    private AllocationTableEntry entryView(int slot) {
+        var block = directory.block(slot);
+        var index = directory.index(slot);
+        return new AllocationTableEntry(block, index, region(getAllocEntryAddress(block, index), AllocationBlock.ENTRY_SIZE), 0, dpb);
+    }
+
+    private AllocationTableFile newFile(int[] slots) {
+        return new AllocationTableFile(Arrays.stream(slots).mapToObj(this::entryView).toList(), dpb, this);
+    }
+
+    /**
+     * Adds a directory entry to, or removes it from, the allocation
+     * bitmap and the directory index. Entries are removed using the
+     * decoded table before they are overwritten and added again
+     * once the table is reloaded.
+     */
+    private void trackEntry(int slot, boolean add) {
+        if (!directory.isUsed(slot)) {
+            return;
+        }
+        markBlocks(slot, add);
+        if (add) {
+            var key = directoryKey(directory.stat(slot), entryView(slot).getFullFilename());
+            entryKeys[slot] = key;
+            directoryIndex.merge(key, new int[] {slot}, (x, y) -> {
+                var slots = Arrays.copyOf(x, x.length + 1);
+                slots[x.length] = slot;
+                return slots;
+            });
+        } else {
+            var key = entryKeys[slot];
+            entryKeys[slot] = null;
+            var slots = directoryIndex.get(key);
+            if (slots != null) {
+                var remaining = Arrays.stream(slots).filter(x -> x != slot).toArray();
+                if (remaining.length == 0) {
+                    directoryIndex.remove(key);
+                } else {
+                    directoryIndex.put(key, remaining);
+                }
+            }
+        }
+    }
+
+    private static DirectoryKey directoryKey(int stat, @NotNull String filename) {
+        return new DirectoryKey(stat, normalizeFilename(filename));
+    }
+
+    /**
+     * Normalizes a file name the way it is stored in a directory
+     * entry: at most 8 characters of name and 3 of extension, in
+     * upper case. Names that normalize alike name the same file.
+     */
+    static String normalizeFilename(@NotNull String filename) {
+        var split = filename.split("\\.");
+        var name = split.length > 0 ? split[0].substring(0, min(split[0].length(), 8)).trim() : "";
+        var ext = split.length > 1 ? split[1].substring(0, min(split[1].length(), 3)).trim() : "";
+        var normalized = ext.isEmpty() ? name : name + "." + ext;
+        return normalized.toUpperCase(Locale.ROOT);
+    }
+
+    private void markBlocks(int slot, boolean used) {
+        for (int i = 0; i < directory.pointersPerEntry(); i++) {
+            var blockPointer = directory.blockPointer(slot, i);
+            if (blockPointer != 0 && blockPointer <= dpb.storageSize()) {
+                allocationBitmap.set(blockPointer, used);
+            }
+        }
+    }
+
+    private int getAllocEntryAddress(long allocBlockPointer, int index) {
+        var offset = AllocationBlock.ENTRY_SIZE * index;
+        var i = Math.floorDiv(offset, dpb.sectorSize());
+        offset = offset % dpb.sectorSize();
+        return getPhysicalAddress(allocBlockPointer, i) + offset;
+    }
+
+    /**
+     * Gets a read-only view of the disk starting at a sector of a block.
+     * The slice covers the run of sectors that are stored consecutively,
+     * which is the rest of the block without a skew table and may be a
+     * single sector with one. No bytes are copied, unless the block
+     * cache is enabled, in which case scattered sectors are sliced
+     * from the reassembled block.
+     *
+     * @param blockPointer The block to read
+     * @param sector The logical sector within the block
+     * @return A read-only slice of the disk buffer or of the cached block
+     */
+    ByteBuffer sliceBlock(long blockPointer, int sector) {
+        loadData(blockPointer);
+        var cache = blockCache;
+        var remaining = dpb.getBlockSectorCount() - sector;
+        if (cache != null && sectorTable.contiguousSectors(blockPointer, sector) < remaining) {
+            // Scattered sectors are served from the reassembled block instead
+            return cache.get(blockPointer, this::assembleBlock)
+                    .slice(sector * dpb.sectorSize(), remaining * dpb.sectorSize());
+        }
+        return sliceWritable(blockPointer, sector).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a block from the storage, if it has not been read yet,
+     * one contiguous run of sectors at a time.
+     */
+    private void load(long blockPointer) throws IOException {
+        for (int i = 0; i < dpb.getBlockSectorCount(); ) {
+            int run = sectorTable.contiguousSectors(blockPointer, i);
+            storage.load(getPhysicalAddress(blockPointer, i), run * dpb.sectorSize());
+            i += run;
+        }
+    }
+
+    private void loadData(long blockPointer) {
+        try {
+            load(blockPointer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void ensureWritable() {
+        if (storage.isReadOnly()) {
+            throw new ReadOnlyFileSystemException();
         }
-        return outBuff.rewind();
     }
 
-    private void readAllocBlock(int i) throws IOException {
-        int index = 15 - i;
-        var buff = readBlock(index);
-        allocationBlocks.add(new AllocationBlock(index, buff, dpb));
+    private void invalidate(long blockPointer) {
+        var cache = blockCache;
+        if (cache != null) {
+            cache.invalidate(blockPointer);
+        }
+    }
+
+    private ByteBuffer sliceWritable(long blockPointer, int sector) {
+        var address = getPhysicalAddress(blockPointer, sector);
+        var length = sectorTable.contiguousSectors(blockPointer, sector) * dpb.sectorSize();
+        return region(address, length);
+    }
+
+    /**
+     * Gets a view of a region of the disk image, straight from the
+     * storage if the image is read on demand.
+     */
+    private ByteBuffer region(int address, int length) {
+        return buffer != null ? buffer.slice(address, length) : storage.slice(address, length);
     }
 
     private int getPhysicalAddress(long blockPointer, int i) {
-        var address = (blockPointer * dpb.getBlockSize()) + dpb.getOffsetBytes();
-        var logicalSector = (int)Math.floorDiv(address, dpb.sectorSize()) + i;
-        var logicalTrackSector = logicalSector % dpb.getSectorsPerTrack();
-        var track = Math.floorDiv(logicalSector, dpb.getSectorsPerTrack());
-        var physicalTrackSector = dpb.translateSector(logicalTrackSector);
-        var physicalAddress = (track * dpb.getSectorsPerTrack() + physicalTrackSector) * dpb.sectorSize();
-        return physicalAddress;
+        return sectorTable.address(blockPointer, i);
     }
 }
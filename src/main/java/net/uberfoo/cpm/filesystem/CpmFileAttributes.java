@@ -0,0 +1,99 @@
+package net.uberfoo.cpm.filesystem;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes of a file or directory in a {@link CpmFileSystem}.
+ * CP/M 2.2 directories keep no time stamps, so every time is the epoch.
+ */
+final class CpmFileAttributes implements BasicFileAttributes {
+
+    private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+    private final boolean directory;
+    private final long size;
+
+    CpmFileAttributes(boolean directory, long size) {
+        this.directory = directory;
+        this.size = size;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+
+    /**
+     * Gets the attributes as a map, as named by {@code basic} file attribute views.
+     *
+     * @param attributes A comma separated list of names, or {@code *} for all
+     * @return A map of the requested attributes
+     */
+    Map<String, Object> toMap(String attributes) {
+        var all = new LinkedHashMap<String, Object>();
+        all.put("size", size());
+        all.put("creationTime", creationTime());
+        all.put("lastAccessTime", lastAccessTime());
+        all.put("lastModifiedTime", lastModifiedTime());
+        all.put("isDirectory", isDirectory());
+        all.put("isRegularFile", isRegularFile());
+        all.put("isSymbolicLink", isSymbolicLink());
+        all.put("isOther", isOther());
+        all.put("fileKey", fileKey());
+
+        var map = new LinkedHashMap<String, Object>();
+        for (var name : attributes.split(",")) {
+            if (name.equals("*")) {
+                return all;
+            }
+            if (!all.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+            map.put(name, all.get(name));
+        }
+        return map;
+    }
+}
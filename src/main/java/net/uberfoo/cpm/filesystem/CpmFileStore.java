@@ -0,0 +1,90 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.FileStore;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.List;
+
+/**
+ * The space of the disks of a mounted CP/M image. A store covers a
+ * single disk, or every partition for the root of a partitioned
+ * image. Space is counted in whole blocks, including the blocks
+ * of the directory.
+ */
+class CpmFileStore extends FileStore {
+
+    private final String name;
+    private final List<CpmDisk> disks;
+
+    CpmFileStore(@NotNull String name, @NotNull List<CpmDisk> disks) {
+        this.name = name;
+        this.disks = List.copyOf(disks);
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String type() {
+        return CpmFileSystemProvider.SCHEME;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return disks.stream().anyMatch(CpmDisk::isReadOnly);
+    }
+
+    @Override
+    public long getTotalSpace() {
+        return disks.stream()
+                .mapToLong(x -> (long)(x.getDpb().storageSize() + 1) * x.getDpb().getBlockSize())
+                .sum();
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return isReadOnly() ? 0 : getUnallocatedSpace();
+    }
+
+    @Override
+    public long getUnallocatedSpace() {
+        return disks.stream()
+                .mapToLong(x -> (long)x.getUnusedBlockCount() * x.getDpb().getBlockSize())
+                .sum();
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+        return type == BasicFileAttributeView.class;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(String name) {
+        return "basic".equals(name);
+    }
+
+    @Override
+    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) {
+        return switch (attribute) {
+            case "totalSpace" -> getTotalSpace();
+            case "usableSpace" -> getUsableSpace();
+            case "unallocatedSpace" -> getUnallocatedSpace();
+            default -> throw new UnsupportedOperationException("Attribute not supported: " + attribute);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type() + ")";
+    }
+}
@@ -0,0 +1,688 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A CP/M disk image mounted as a {@link FileSystem}. The files of a
+ * disk are grouped in a directory for each user number. The disks
+ * of a partitioned image are further grouped in a directory for each
+ * partition label, so {@code /0/STAT.COM} on a single disk becomes
+ * {@code /Drive C/0/STAT.COM} on a partitioned one.
+ * <p>
+ * Files are read straight from the sectors of the disk through a
+ * seekable channel. Existing files are written in place, while new
+ * files are buffered until their channel is closed and then created
+ * in one pass.
+ */
+public class CpmFileSystem extends FileSystem {
+
+    private static final int MAX_USER = 15;
+
+    private final CpmFileSystemProvider provider;
+    private final Path image;
+    private final FileChannel channel;
+    private final CpmDisk disk;
+    private final PartitionedDisk partitionedDisk;
+    private volatile boolean open = true;
+
+    /**
+     * A resolved path.
+     *
+     * @param disk The disk of the path, or null for the root of a partitioned image.
+     * @param user The user number of the path, or -1 above the user directories.
+     * @param filename The name of the file, or null for a directory.
+     */
+    private record Location(CpmDisk disk, int user, String filename) {}
+
+    CpmFileSystem(@NotNull CpmFileSystemProvider provider, Path image, FileChannel channel,
+                  CpmDisk disk, PartitionedDisk partitionedDisk) {
+        this.provider = provider;
+        this.image = image;
+        this.channel = channel;
+        this.disk = disk;
+        this.partitionedDisk = partitionedDisk;
+    }
+
+    /**
+     * Mounts a disk. Closing the file system flushes the disk
+     * but leaves it open.
+     *
+     * @param disk The disk
+     * @return A file system of the disk
+     */
+    public static CpmFileSystem of(@NotNull CpmDisk disk) {
+        return new CpmFileSystem(CpmFileSystemProvider.instance(), null, null, disk, null);
+    }
+
+    /**
+     * Mounts a partitioned disk. Closing the file system flushes
+     * the opened partitions but leaves them open.
+     *
+     * @param disk The partitioned disk
+     * @return A file system of the disk
+     */
+    public static CpmFileSystem of(@NotNull PartitionedDisk disk) {
+        return new CpmFileSystem(CpmFileSystemProvider.instance(), null, null, null, disk);
+    }
+
+    /**
+     * Opens an image file. Images with a partition table are opened
+     * as partitioned disks, others need disk parameters. An image
+     * that cannot be written is opened read-only.
+     *
+     * @throws UnsupportedOperationException If the file is not a CP/M image
+     */
+    static CpmFileSystem open(CpmFileSystemProvider provider, Path image, DiskParameterBlock dpb) throws IOException {
+        if (dpb == null && !hasPartitionTable(image)) {
+            throw new UnsupportedOperationException("Not a partitioned CP/M image: " + image);
+        }
+
+        var channel = Files.isWritable(image)
+                ? FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(image, StandardOpenOption.READ);
+        try {
+            if (dpb != null) {
+                return new CpmFileSystem(provider, image, channel, new CpmDisk(dpb, channel, 0), null);
+            }
+            return new CpmFileSystem(provider, image, channel, null, new PartitionedDisk(channel, new PartitionTable(channel)));
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException x ? x : new IOException(e);
+        }
+    }
+
+    private static boolean hasPartitionTable(Path image) throws IOException {
+        try (var channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            if (channel.size() < PartitionTable.HEADER_SIZE) {
+                return false;
+            }
+            new PartitionTable(channel);
+            return true;
+        } catch (InvalidObjectException | ClassNotFoundException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public CpmFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Closes this file system. Dirty sectors of the opened disks are
+     * flushed and, if the file system opened the image itself, the
+     * disks and the image are closed.
+     *
+     * @throws IOException If an error occurs flushing or closing
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        for (var x : loadedDisks()) {
+            if (channel != null) {
+                x.close();
+            } else {
+                x.refresh();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+            provider.removeFileSystem(image, this);
+        }
+    }
+
+    private List<CpmDisk> loadedDisks() {
+        if (disk != null) {
+            return List.of(disk);
+        }
+        var disks = new ArrayList<CpmDisk>();
+        for (int i = 0; i < partitionedDisk.getLabels().size(); i++) {
+            if (partitionedDisk.isLoaded(i)) {
+                disks.add(partitionedDisk.get(i).disk());
+            }
+        }
+        return disks;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return disk != null ? disk.isReadOnly() : partitionedDisk.isReadOnly();
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(new CpmPath(this, true));
+    }
+
+    /**
+     * Gets a store for each disk of this file system. The partitions
+     * of a partitioned image are opened when they are listed.
+     */
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        if (disk != null) {
+            return List.of(new CpmFileStore(storeName(), List.of(disk)));
+        }
+        return () -> partitionedDisk.getDisks().stream()
+                .map(x -> (FileStore)new CpmFileStore(x.label(), List.of(x.disk())))
+                .iterator();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public CpmPath getPath(@NotNull String first, @NotNull String... more) {
+        return CpmPath.parse(this, first, more);
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(@NotNull String syntaxAndPattern) {
+        int split = syntaxAndPattern.indexOf(':');
+        if (split <= 0) {
+            throw new IllegalArgumentException("Expected syntax:pattern, got " + syntaxAndPattern);
+        }
+        var syntax = syntaxAndPattern.substring(0, split);
+        var pattern = syntaxAndPattern.substring(split + 1);
+        var regex = switch (syntax.toLowerCase(Locale.ROOT)) {
+            case "glob" -> Pattern.compile(globToRegex(pattern));
+            case "regex" -> Pattern.compile(pattern);
+            default -> throw new UnsupportedOperationException("Syntax not supported: " + syntax);
+        };
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    Path getImage() {
+        return image;
+    }
+
+    private String storeName() {
+        return image == null ? CpmFileSystemProvider.SCHEME : image.getFileName().toString();
+    }
+
+    /**
+     * Gets the store of the disk of a path. The root of a partitioned
+     * image is stored on every partition, which are all opened.
+     */
+    CpmFileStore getFileStore(CpmPath path) throws IOException {
+        var location = locate(path);
+        readAttributes(path);
+        if (location.disk() == null) {
+            return new CpmFileStore(storeName(), partitionedDisk.getDisks().stream().map(LabeledDisk::disk).toList());
+        }
+        if (partitionedDisk != null) {
+            return new CpmFileStore(path.toAbsolutePath().normalize().names()[0], List.of(location.disk()));
+        }
+        return new CpmFileStore(storeName(), List.of(location.disk()));
+    }
+
+    /**
+     * Checks that a path exists and can be accessed in the requested
+     * modes. Nothing on a read-only disk can be written and, as CP/M
+     * programs cannot be run here, nothing can be executed.
+     *
+     * @throws AccessDeniedException If a mode is denied
+     */
+    void checkAccess(CpmPath path, AccessMode... modes) throws IOException {
+        var location = locate(path);
+        readAttributes(path);
+        for (var mode : modes) {
+            var denied = switch (mode) {
+                case READ -> false;
+                case WRITE -> location.disk() == null ? isReadOnly() : location.disk().isReadOnly();
+                case EXECUTE -> true;
+            };
+            if (denied) {
+                throw new AccessDeniedException(path.toString(), null, mode + " access denied");
+            }
+        }
+    }
+
+    /**
+     * Checks whether two paths of this file system locate the same
+     * file or directory. File names are compared the way the disk
+     * stores them, so case and characters past the 8.3 limits are
+     * ignored. Paths that cannot be located are compared as paths.
+     */
+    boolean isSameFile(CpmPath path, CpmPath path2) {
+        try {
+            var location = locate(path);
+            var location2 = locate(path2);
+            return location.disk() == location2.disk()
+                    && location.user() == location2.user()
+                    && Objects.equals(normalize(location.filename()), normalize(location2.filename()));
+        } catch (NoSuchFileException e) {
+            return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+        }
+    }
+
+    private static String normalize(String filename) {
+        return filename == null ? null : CpmDisk.normalizeFilename(filename);
+    }
+
+    URI toUri(String path) {
+        var ssp = image == null ? path : image.toUri() + "!" + path;
+        return URI.create(CpmFileSystemProvider.SCHEME + ":" + ssp);
+    }
+
+    CpmFileAttributes readAttributes(CpmPath path) throws IOException {
+        var location = locate(path);
+        if (location.filename() == null) {
+            return new CpmFileAttributes(true, 0);
+        }
+        return new CpmFileAttributes(false, findFile(path, location).size());
+    }
+
+    List<Path> list(CpmPath dir) throws IOException {
+        var location = locate(dir);
+        if (location.filename() != null) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        var children = new ArrayList<String>();
+        if (location.disk() == null) {
+            children.addAll(partitionedDisk.getLabels());
+        } else if (location.user() < 0) {
+            for (int i = 0; i <= MAX_USER; i++) {
+                children.add(Integer.toString(i));
+            }
+        } else {
+            location.disk().getFilesStream()
+                    .filter(x -> x.getStat() == location.user())
+                    .map(AllocationTableFile::getFilename)
+                    .forEach(children::add);
+        }
+        return children.stream()
+                .map(x -> (Path)dir.resolve(new CpmPath(this, false, x)))
+                .toList();
+    }
+
+    SeekableByteChannel newByteChannel(CpmPath path, Set<? extends OpenOption> options) throws IOException {
+        ensureOpen();
+        var location = locate(path);
+        if (location.filename() == null) {
+            throw new FileSystemException(path + ": Is a directory");
+        }
+        var append = options.contains(StandardOpenOption.APPEND);
+        if (append && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("APPEND and TRUNCATE_EXISTING cannot be combined");
+        }
+        if (!options.contains(StandardOpenOption.WRITE) && !append) {
+            return findFile(path, location).newChannel();
+        }
+        if (location.disk().isReadOnly()) {
+            throw new ReadOnlyFileSystemException();
+        }
+
+        var exists = location.disk().findFile(location.filename(), location.user()).isPresent();
+        if (exists && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (!exists && !options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        var readable = options.contains(StandardOpenOption.READ);
+        if (!exists) {
+            var file = location.disk().createFile(location.filename(), location.user(), new BitSet(11), ByteBuffer.allocate(0));
+            return new FileWriteChannel(file, append, readable);
+        }
+        if (!options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            return new FileWriteChannel(findFile(path, location), append, readable);
+        }
+        return new NewFileChannel(location.disk(), location.filename(), location.user(), new BitSet(11), readable);
+    }
+
+    void createFile(CpmPath path, BitSet flags, SeekableByteChannel contents, boolean replace) throws IOException {
+        ensureOpen();
+        var location = locate(path);
+        if (location.filename() == null) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (replace) {
+            location.disk().replaceFile(location.filename(), location.user(), flags, contents);
+        } else {
+            location.disk().createFile(location.filename(), location.user(), flags, contents);
+        }
+    }
+
+    BitSet getFlags(CpmPath path) throws IOException {
+        var location = locate(path);
+        return findFile(path, location).getFlags();
+    }
+
+    void delete(CpmPath path) throws IOException {
+        ensureOpen();
+        var location = locate(path);
+        if (location.filename() == null) {
+            throw new FileSystemException(path + ": Directories cannot be deleted");
+        }
+        try {
+            location.disk().deleteFile(location.filename(), location.user());
+        } catch (FileNotFoundException e) {
+            throw new NoSuchFileException(path.toString());
+        }
+    }
+
+    private AllocationTableFile findFile(CpmPath path, Location location) throws NoSuchFileException {
+        return location.disk().findFile(location.filename(), location.user())
+                .orElseThrow(() -> new NoSuchFileException(path.toString()));
+    }
+
+    /**
+     * Resolves a path to its disk, user number and file name. The
+     * file itself is not looked up.
+     */
+    private Location locate(CpmPath path) throws NoSuchFileException {
+        var names = path.toAbsolutePath().normalize().names();
+        int i = 0;
+        var target = disk;
+        if (partitionedDisk != null) {
+            if (names.length == 0) {
+                return new Location(null, -1, null);
+            }
+            target = partitionedDisk.get(names[i++])
+                    .orElseThrow(() -> new NoSuchFileException(path.toString()))
+                    .disk();
+        }
+        if (names.length == i) {
+            return new Location(target, -1, null);
+        }
+        int user = parseUser(path, names[i++]);
+        if (names.length == i) {
+            return new Location(target, user, null);
+        }
+        if (names.length > i + 1) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return new Location(target, user, names[i]);
+    }
+
+    private static int parseUser(CpmPath path, String name) throws NoSuchFileException {
+        try {
+            int user = Integer.parseInt(name);
+            if (user >= 0 && user <= MAX_USER) {
+                return user;
+            }
+        } catch (NumberFormatException e) {
+            // Not a user number
+        }
+        throw new NoSuchFileException(path.toString());
+    }
+
+    private void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Translates a glob into a regular expression. Supports
+     * {@code *}, {@code **}, {@code ?}, {@code [...]} and {@code {a,b}}.
+     */
+    private static String globToRegex(String glob) {
+        var regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    int end = glob.indexOf(']', i);
+                    if (end < 0) {
+                        throw new PatternSyntaxException("Missing ']'", glob, i);
+                    }
+                    var set = glob.substring(i + 1, end);
+                    regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = end;
+                }
+                case '{' -> {
+                    regex.append("(?:");
+                    inGroup = true;
+                }
+                case '}' -> {
+                    regex.append(')');
+                    inGroup = false;
+                }
+                case ',' -> regex.append(inGroup ? "|" : ",");
+                case '\\' -> {
+                    if (++i < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    }
+                }
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Writes into an existing file in place, and reads from it
+     * if it was opened for reading too.
+     */
+    private static final class FileWriteChannel implements SeekableByteChannel {
+
+        private final AllocationTableFile file;
+        private final boolean append;
+        private final boolean readable;
+        private long position;
+        private boolean channelOpen = true;
+
+        FileWriteChannel(AllocationTableFile file, boolean append, boolean readable) {
+            this.file = file;
+            this.append = append;
+            this.readable = readable;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureChannelOpen();
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+            int read = file.read(position, dst);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureChannelOpen();
+            if (append) {
+                position = file.size();
+            }
+            int length = file.write(position, src);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureChannelOpen();
+            return append ? file.size() : position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureChannelOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position: " + newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureChannelOpen();
+            return file.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            ensureChannelOpen();
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative size: " + size);
+            }
+            file.truncate(size);
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channelOpen;
+        }
+
+        @Override
+        public void close() {
+            channelOpen = false;
+        }
+
+        private void ensureChannelOpen() throws ClosedChannelException {
+            if (!channelOpen) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * Spools the new contents of an existing file to a temporary
+     * file and replaces the file on the disk when the channel is
+     * closed, so the old contents are kept until then.
+     */
+    private static final class NewFileChannel implements SeekableByteChannel {
+
+        private static final int ZERO_CHUNK_SIZE = 8192;
+
+        private final CpmDisk target;
+        private final String filename;
+        private final int user;
+        private final BitSet flags;
+        private final boolean readable;
+        private final FileChannel spool;
+
+        NewFileChannel(CpmDisk target, String filename, int user, BitSet flags, boolean readable) throws IOException {
+            this.target = target;
+            this.filename = filename;
+            this.user = user;
+            this.flags = flags;
+            this.readable = readable;
+            var path = Files.createTempFile("cpm", ".tmp");
+            try {
+                this.spool = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+            return spool.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            // A gap left by seeking past the end must read as zeros
+            var position = spool.position();
+            var zeros = ByteBuffer.allocate(ZERO_CHUNK_SIZE);
+            for (long end = spool.size(); end < position && src.hasRemaining(); ) {
+                end += spool.write(zeros.clear().limit((int)Math.min(ZERO_CHUNK_SIZE, position - end)), end);
+            }
+            return spool.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return spool.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            spool.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return spool.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long newSize) throws IOException {
+            spool.truncate(newSize);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return spool.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!spool.isOpen()) {
+                return;
+            }
+            try {
+                // The old file is only replaced once the new one has been written
+                target.replaceFile(filename, user, flags, spool.position(0));
+            } finally {
+                spool.close();
+            }
+        }
+    }
+}
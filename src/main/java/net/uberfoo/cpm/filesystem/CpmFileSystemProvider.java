@@ -0,0 +1,315 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides file systems of CP/M disk images for the {@code cpm} URI
+ * scheme. An image with a partition table is mounted by
+ * {@code FileSystems.newFileSystem(path)}; an image of a single disk
+ * needs its parameters passed in the environment under
+ * {@value #DPB_ENV}. URIs name the image and the path within it,
+ * e.g. {@code cpm:file:///images/disk.img!/Drive%20C/0/STAT.COM}.
+ */
+public class CpmFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "cpm";
+
+    /**
+     * Environment key of the {@link DiskParameterBlock} of an image
+     * without a partition table.
+     */
+    public static final String DPB_ENV = "dpb";
+
+    private static final String SEPARATOR = "!";
+
+    private static volatile CpmFileSystemProvider instance;
+
+    private final Map<Path, CpmFileSystem> fileSystems = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the installed provider of the {@code cpm} scheme, or a
+     * new one if this library is not on the class path of the
+     * system class loader.
+     */
+    static CpmFileSystemProvider instance() {
+        var result = instance;
+        if (result == null) {
+            synchronized (CpmFileSystemProvider.class) {
+                result = instance;
+                if (result == null) {
+                    result = FileSystemProvider.installedProviders().stream()
+                            .filter(CpmFileSystemProvider.class::isInstance)
+                            .map(CpmFileSystemProvider.class::cast)
+                            .findFirst()
+                            .orElseGet(CpmFileSystemProvider::new);
+                    instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public CpmFileSystem newFileSystem(@NotNull URI uri, @NotNull Map<String, ?> env) throws IOException {
+        var image = imagePath(uri);
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(image)) {
+                throw new FileSystemAlreadyExistsException(uri.toString());
+            }
+            var fileSystem = CpmFileSystem.open(this, image, dpb(env));
+            fileSystems.put(image, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    /**
+     * Opens an image file. The first file system opened for an
+     * image is also the one its {@code cpm} URIs resolve to, until
+     * it is closed.
+     */
+    @Override
+    public CpmFileSystem newFileSystem(@NotNull Path path, @NotNull Map<String, ?> env) throws IOException {
+        var fileSystem = CpmFileSystem.open(this, path, dpb(env));
+        fileSystems.putIfAbsent(path.toAbsolutePath().normalize(), fileSystem);
+        return fileSystem;
+    }
+
+    @Override
+    public CpmFileSystem getFileSystem(@NotNull URI uri) {
+        var fileSystem = fileSystems.get(imagePath(uri));
+        if (fileSystem == null) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        return fileSystem;
+    }
+
+    @Override
+    public CpmPath getPath(@NotNull URI uri) {
+        var ssp = uri.getSchemeSpecificPart();
+        int split = ssp.indexOf(SEPARATOR);
+        return getFileSystem(uri).getPath(split < 0 ? "/" : ssp.substring(split + 1));
+    }
+
+    void removeFileSystem(Path image, CpmFileSystem fileSystem) {
+        fileSystems.remove(image.toAbsolutePath().normalize(), fileSystem);
+    }
+
+    private Path imagePath(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "'");
+        }
+        var ssp = uri.getRawSchemeSpecificPart();
+        int split = ssp.indexOf(SEPARATOR);
+        return Path.of(URI.create(split < 0 ? ssp : ssp.substring(0, split))).toAbsolutePath().normalize();
+    }
+
+    private static DiskParameterBlock dpb(Map<String, ?> env) {
+        var dpb = env.get(DPB_ENV);
+        if (dpb != null && !(dpb instanceof DiskParameterBlock)) {
+            throw new IllegalArgumentException(DPB_ENV + " must be a DiskParameterBlock");
+        }
+        return (DiskParameterBlock)dpb;
+    }
+
+    private static CpmPath toCpmPath(Path path) {
+        if (!(path instanceof CpmPath cpmPath)) {
+            throw new ProviderMismatchException();
+        }
+        return cpmPath;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(@NotNull Path path, @NotNull Set<? extends OpenOption> options,
+                                              @NotNull FileAttribute<?>... attrs) throws IOException {
+        var cpmPath = toCpmPath(path);
+        return cpmPath.getFileSystem().newByteChannel(cpmPath, options);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(@NotNull Path dir, @NotNull DirectoryStream.Filter<? super Path> filter) throws IOException {
+        var cpmPath = toCpmPath(dir);
+        var entries = new ArrayList<Path>();
+        for (var x : cpmPath.getFileSystem().list(cpmPath)) {
+            if (filter.accept(x)) {
+                entries.add(x);
+            }
+        }
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Partitions and user numbers are fixed, so directories cannot be created.
+     *
+     * @throws FileAlreadyExistsException If the directory exists
+     * @throws UnsupportedOperationException Otherwise
+     */
+    @Override
+    public void createDirectory(@NotNull Path dir, @NotNull FileAttribute<?>... attrs) throws IOException {
+        var cpmPath = toCpmPath(dir);
+        try {
+            cpmPath.getFileSystem().readAttributes(cpmPath);
+        } catch (NoSuchFileException e) {
+            throw new UnsupportedOperationException("Directories cannot be created: " + dir);
+        }
+        throw new FileAlreadyExistsException(dir.toString());
+    }
+
+    @Override
+    public void delete(@NotNull Path path) throws IOException {
+        var cpmPath = toCpmPath(path);
+        cpmPath.getFileSystem().delete(cpmPath);
+    }
+
+    /**
+     * Copies a file between two paths of CP/M file systems. The
+     * contents are streamed from the sectors of the source into
+     * the target disk and the flags of the file are kept. A file
+     * that is replaced is only deleted once the copy is written.
+     */
+    @Override
+    public void copy(@NotNull Path source, @NotNull Path target, @NotNull CopyOption... options) throws IOException {
+        var from = toCpmPath(source);
+        var to = toCpmPath(target);
+        if (isSameFile(from, to)) {
+            from.getFileSystem().readAttributes(from);
+            return;
+        }
+        if (from.getFileSystem().readAttributes(from).isDirectory()) {
+            createDirectory(to);
+            return;
+        }
+        var replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+        if (!replace && exists(to)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        var flags = from.getFileSystem().getFlags(from);
+        try (var channel = from.getFileSystem().newByteChannel(from, Set.of(StandardOpenOption.READ))) {
+            to.getFileSystem().createFile(to, flags, channel, replace);
+        }
+    }
+
+    @Override
+    public void move(@NotNull Path source, @NotNull Path target, @NotNull CopyOption... options) throws IOException {
+        if (isSameFile(source, target)) {
+            return;
+        }
+        copy(source, target, options);
+        delete(source);
+    }
+
+    private boolean exists(CpmPath path) throws IOException {
+        try {
+            path.getFileSystem().readAttributes(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether two paths locate the same file. File names are
+     * compared the way CP/M stores them, regardless of case.
+     */
+    @Override
+    public boolean isSameFile(@NotNull Path path, @NotNull Path path2) {
+        var cpmPath = toCpmPath(path);
+        if (!(path2 instanceof CpmPath cpmPath2) || cpmPath.getFileSystem() != cpmPath2.getFileSystem()) {
+            return false;
+        }
+        return cpmPath.getFileSystem().isSameFile(cpmPath, cpmPath2);
+    }
+
+    @Override
+    public boolean isHidden(@NotNull Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(@NotNull Path path) throws IOException {
+        var cpmPath = toCpmPath(path);
+        return cpmPath.getFileSystem().getFileStore(cpmPath);
+    }
+
+    @Override
+    public void checkAccess(@NotNull Path path, @NotNull AccessMode... modes) throws IOException {
+        var cpmPath = toCpmPath(path);
+        cpmPath.getFileSystem().checkAccess(cpmPath, modes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(@NotNull Path path, @NotNull Class<V> type, @NotNull LinkOption... options) {
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        var cpmPath = toCpmPath(path);
+        return (V)new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return cpmPath.getFileSystem().readAttributes(cpmPath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(@NotNull Path path, @NotNull Class<A> type, @NotNull LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Attributes not supported: " + type.getName());
+        }
+        var cpmPath = toCpmPath(path);
+        return (A)cpmPath.getFileSystem().readAttributes(cpmPath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(@NotNull Path path, @NotNull String attributes, @NotNull LinkOption... options) throws IOException {
+        var split = attributes.indexOf(':');
+        if (split >= 0 && !attributes.substring(0, split).equals("basic")) {
+            throw new UnsupportedOperationException("View not supported: " + attributes.substring(0, split));
+        }
+        var cpmPath = toCpmPath(path);
+        return cpmPath.getFileSystem().readAttributes(cpmPath).toMap(attributes.substring(split + 1));
+    }
+
+    @Override
+    public void setAttribute(@NotNull Path path, @NotNull String attribute, Object value, @NotNull LinkOption... options) {
+        throw new UnsupportedOperationException();
+    }
+}
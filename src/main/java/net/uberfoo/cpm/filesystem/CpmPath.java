@@ -0,0 +1,212 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A path in a {@link CpmFileSystem}. Paths are made of up to three
+ * names: the label of a partition, if the image is partitioned,
+ * the user number and the 8.3 name of a file, e.g.
+ * {@code /Drive C/0/STAT.COM}.
+ */
+public final class CpmPath implements Path {
+
+    private final CpmFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+
+    CpmPath(@NotNull CpmFileSystem fileSystem, boolean absolute, @NotNull String... names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    static CpmPath parse(@NotNull CpmFileSystem fileSystem, @NotNull String first, @NotNull String... more) {
+        var names = new ArrayList<String>();
+        var path = new StringBuilder(first);
+        for (var x : more) {
+            path.append('/').append(x);
+        }
+        for (var name : path.toString().split("/")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return new CpmPath(fileSystem, path.toString().startsWith("/"), names.toArray(String[]::new));
+    }
+
+    @Override
+    public CpmFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public CpmPath getRoot() {
+        return absolute ? new CpmPath(fileSystem, true) : null;
+    }
+
+    @Override
+    public CpmPath getFileName() {
+        return names.length == 0 ? null : new CpmPath(fileSystem, false, names[names.length - 1]);
+    }
+
+    @Override
+    public CpmPath getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute)) {
+            return null;
+        }
+        return new CpmPath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public CpmPath getName(int index) {
+        return new CpmPath(fileSystem, false, names[index]);
+    }
+
+    @Override
+    public CpmPath subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException();
+        }
+        return new CpmPath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(@NotNull Path other) {
+        if (!(other instanceof CpmPath that) || that.absolute != absolute || that.names.length > names.length) {
+            return false;
+        }
+        return Arrays.equals(names, 0, that.names.length, that.names, 0, that.names.length);
+    }
+
+    @Override
+    public boolean endsWith(@NotNull Path other) {
+        if (!(other instanceof CpmPath that) || that.names.length > names.length) {
+            return false;
+        }
+        if (that.absolute) {
+            return equals(that);
+        }
+        return Arrays.equals(names, names.length - that.names.length, names.length, that.names, 0, that.names.length);
+    }
+
+    @Override
+    public CpmPath normalize() {
+        var normalized = new ArrayList<String>(names.length);
+        for (var name : names) {
+            if (name.equals("..") && !normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                normalized.remove(normalized.size() - 1);
+            } else if (name.equals("..") && absolute) {
+                continue;
+            } else if (!name.equals(".")) {
+                normalized.add(name);
+            }
+        }
+        return new CpmPath(fileSystem, absolute, normalized.toArray(String[]::new));
+    }
+
+    @Override
+    public CpmPath resolve(@NotNull Path other) {
+        var that = checkPath(other);
+        if (that.absolute) {
+            return that;
+        }
+        var resolved = Arrays.copyOf(names, names.length + that.names.length);
+        System.arraycopy(that.names, 0, resolved, names.length, that.names.length);
+        return new CpmPath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public CpmPath relativize(@NotNull Path other) {
+        var that = checkPath(other);
+        if (that.absolute != absolute) {
+            throw new IllegalArgumentException("Only paths of the same type can be relativized");
+        }
+        int common = 0;
+        while (common < names.length && common < that.names.length && names[common].equals(that.names[common])) {
+            common++;
+        }
+        var relative = new ArrayList<String>();
+        for (int i = common; i < names.length; i++) {
+            relative.add("..");
+        }
+        relative.addAll(List.of(that.names).subList(common, that.names.length));
+        return new CpmPath(fileSystem, false, relative.toArray(String[]::new));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return fileSystem.toUri(new URI(null, null, toAbsolutePath().toString(), null).getRawPath());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CpmPath toAbsolutePath() {
+        return absolute ? this : new CpmPath(fileSystem, true, names);
+    }
+
+    @Override
+    public CpmPath toRealPath(@NotNull LinkOption... options) throws IOException {
+        var path = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(path);
+        return path;
+    }
+
+    @Override
+    public WatchKey register(@NotNull WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int compareTo(@NotNull Path other) {
+        return toString().compareTo(checkPath(other).toString());
+    }
+
+    String[] names() {
+        return names;
+    }
+
+    private CpmPath checkPath(Path path) {
+        if (!(path instanceof CpmPath that) || that.fileSystem != fileSystem) {
+            throw new ProviderMismatchException();
+        }
+        return that;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CpmPath that)) return false;
+        return fileSystem == that.fileSystem && absolute == that.absolute && Arrays.equals(names, that.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Boolean.hashCode(absolute) + Arrays.hashCode(names);
+    }
+
+    @Override
+    public String toString() {
+        return (absolute ? "/" : "") + String.join("/", names);
+    }
+}
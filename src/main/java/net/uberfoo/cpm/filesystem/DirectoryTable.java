@@ -0,0 +1,116 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The decoded directory of a disk, stored as a structure of arrays
+ * instead of an object per entry. Entries are addressed by slot,
+ * which is the ordinal of their directory block times the number
+ * of entries in a block plus their index within the block.
+ */
+final class DirectoryTable {
+
+    private static final int UNUSED = 0xE5;
+
+    private final int[] directoryBlocks;
+    private final int entriesPerBlock;
+    private final int pointersPerEntry;
+
+    private final short[] stats;
+    private final short[] extents;
+    private final short[] recordCounts;
+    private final int[] blockPointers;
+
+    /**
+     * Creates a table of unused entries.
+     *
+     * @param directoryBlocks The directory blocks in slot order
+     * @param dpb The disk parameters
+     */
+    DirectoryTable(int @NotNull [] directoryBlocks, @NotNull DiskParameterBlock dpb) {
+        this.directoryBlocks = directoryBlocks;
+        this.entriesPerBlock = dpb.getBlockSize() / AllocationBlock.ENTRY_SIZE;
+        this.pointersPerEntry = dpb.getBlockPointersPerEntry();
+
+        int size = directoryBlocks.length * entriesPerBlock;
+        stats = new short[size];
+        extents = new short[size];
+        recordCounts = new short[size];
+        blockPointers = new int[size * pointersPerEntry];
+        Arrays.fill(stats, (short)UNUSED);
+    }
+
+    /**
+     * Copies the decoded fields of an entry into a slot.
+     *
+     * @param slot The slot
+     * @param entry The entry stored at the slot
+     */
+    void load(int slot, @NotNull AllocationTableEntry entry) {
+        stats[slot] = (short)entry.getStat();
+        extents[slot] = (short)entry.getExtent();
+        recordCounts[slot] = (short)entry.getRecordCount();
+        int base = slot * pointersPerEntry;
+        for (int i = 0; i < pointersPerEntry; i++) {
+            blockPointers[base + i] = i < entry.getBlockPointerCount() ? entry.getBlockPointer(i) : 0;
+        }
+    }
+
+    /**
+     * Finds the slot of an entry.
+     *
+     * @param block The directory block of the entry
+     * @param index The index of the entry within the block
+     * @return The slot, or -1 if the block is not a directory block
+     */
+    int slot(long block, int index) {
+        for (int i = 0; i < directoryBlocks.length; i++) {
+            if (directoryBlocks[i] == block) {
+                return i * entriesPerBlock + index;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return stats.length;
+    }
+
+    int[] getDirectoryBlocks() {
+        return directoryBlocks.clone();
+    }
+
+    int block(int slot) {
+        return directoryBlocks[slot / entriesPerBlock];
+    }
+
+    int index(int slot) {
+        return slot % entriesPerBlock;
+    }
+
+    boolean isUsed(int slot) {
+        return stats[slot] != UNUSED;
+    }
+
+    int stat(int slot) {
+        return stats[slot];
+    }
+
+    int extent(int slot) {
+        return extents[slot];
+    }
+
+    int recordCount(int slot) {
+        return recordCounts[slot];
+    }
+
+    int pointersPerEntry() {
+        return pointersPerEntry;
+    }
+
+    int blockPointer(int slot, int i) {
+        return blockPointers[slot * pointersPerEntry + i];
+    }
+}
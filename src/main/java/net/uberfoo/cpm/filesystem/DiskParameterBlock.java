@@ -2,6 +2,9 @@ package net.uberfoo.cpm.filesystem;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -17,6 +20,7 @@ import java.util.Objects;
  * @param directoryAllocationBitmap2 Mask of allocation directory locations.
  * @param checkVectorSize Check vector size. Usually 0 for fixed disks.
  * @param offset Number of tracks to skip at the beginning of the disk.
+ * @param skewTab Physical sector of each logical sector of a track, or empty without skew. The array is copied.
  */
 public record DiskParameterBlock(
         int sectorSize,
@@ -33,6 +37,22 @@ public record DiskParameterBlock(
         int[] skewTab
 ) implements Serializable {
 
+    // Number of distinct parameter blocks whose sector translation tables are kept
+    private static final int MAX_SECTOR_TABLES = 64;
+
+    private static final Map<DiskParameterBlock, SectorTranslationTable> SECTOR_TABLES = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DiskParameterBlock, SectorTranslationTable> eldest) {
+                    return size() > MAX_SECTOR_TABLES;
+                }
+            });
+
+    public DiskParameterBlock {
+        // Equality and the shared sector tables depend on the skew table never changing
+        skewTab = skewTab.clone();
+    }
+
     public DiskParameterBlock(CpmPartitionTableEntry tableEntry) {
         this(
                 tableEntry.sectorSize(),
@@ -46,11 +66,25 @@ public record DiskParameterBlock(
                 tableEntry.directoryAllocationBitmap2(),
                 tableEntry.checkVectorSize(),
                 tableEntry.trackOffset(),
-                new int[tableEntry.skewTabLength()]
+                skewTab(tableEntry)
         );
+    }
 
+    private static int[] skewTab(CpmPartitionTableEntry tableEntry) {
+        var skewTab = new int[tableEntry.skewTabLength()];
         for (int i = 0; i < tableEntry.skewTabLength(); i++)
             skewTab[i] = tableEntry.skewTab(i);
+        return skewTab;
+    }
+
+    /**
+     * Gets a copy of the skew table.
+     *
+     * @return Physical sector of each logical sector of a track, or empty without skew
+     */
+    @Override
+    public int[] skewTab() {
+        return skewTab.clone();
     }
 
     /**
@@ -65,6 +99,17 @@ public record DiskParameterBlock(
         return skewTab[sector];
     }
 
+    /**
+     * Gets the sector translation table for these parameters. Tables
+     * are shared between equal parameter blocks, and the tables of
+     * the most recently used parameter blocks are kept.
+     *
+     * @return A sector translation table
+     */
+    public SectorTranslationTable getSectorTranslationTable() {
+        return SECTOR_TABLES.computeIfAbsent(this, SectorTranslationTable::new);
+    }
+
     /**
      * Computes the size of a single block according to the parameters.
      *
@@ -101,6 +146,25 @@ public record DiskParameterBlock(
         return (int)(getBlockSize() / sectorSize);
     }
 
+    /**
+     * Computes the size of a block pointer in a directory entry.
+     * Disks with 256 blocks or less use single byte pointers.
+     *
+     * @return A size in bytes
+     */
+    public int getBlockPointerSize() {
+        return storageSize < 256 ? 1 : 2;
+    }
+
+    /**
+     * Computes the number of block pointers in a single directory entry.
+     *
+     * @return A number of block pointers
+     */
+    public int getBlockPointersPerEntry() {
+        return 16 / getBlockPointerSize();
+    }
+
     /**
      * Computes the size of the disk offset in bytes according to the parameters.
      *
@@ -0,0 +1,304 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Guesses the disk parameters of a raw image without a partition
+ * table. Every known format, and a variant without skew of each
+ * skewed format, is scored by how plausible its directory looks:
+ * a few directory sectors are sampled and each entry is checked
+ * for a valid stat byte, a printable name, sane extent and record
+ * counts and block pointers within the disk. Images whose size
+ * matches a format score higher, and formats with reserved tracks
+ * score lower when the first sector of the image is blank, as
+ * there is no boot loader to reserve them for. Nothing is parsed
+ * beyond the sampled sectors.
+ */
+public class DiskParameterBlockDetector {
+
+    private static final int ENTRY_SIZE = AllocationBlock.ENTRY_SIZE;
+    private static final int SAMPLE_SECTORS = 8;
+    private static final int EMPTY = 0xE5;
+    private static final int MAX_USER = 31;
+    private static final int LABEL = 0x20;
+    private static final int TIMESTAMPS = 0x21;
+    // Less than a single file adds, so a used directory still wins
+    private static final double BLANK_BOOT_PENALTY = 0.005;
+
+    /**
+     * Scores at or above this are considered a match by {@link #detect(FileChannel)}.
+     */
+    public static final double THRESHOLD = 0.9;
+
+    private static final Map<String, DiskParameterBlock> KNOWN_FORMATS = knownFormats();
+
+    /**
+     * A format that may fit an image.
+     *
+     * @param name The name of the format.
+     * @param dpb The disk parameters of the format.
+     * @param score How plausible the format is, from 0 to 1.
+     */
+    public record Candidate(@NotNull String name, @NotNull DiskParameterBlock dpb, double score) {}
+
+    private enum EntryCheck { INVALID, UNUSED, FILE }
+
+    /**
+     * Reads bytes of an image at a position.
+     */
+    private interface Source {
+        long size() throws IOException;
+
+        void read(long position, ByteBuffer dst) throws IOException;
+    }
+
+    private final Map<String, DiskParameterBlock> candidates = new LinkedHashMap<>();
+
+    /**
+     * Creates a detector of the built-in formats.
+     */
+    public DiskParameterBlockDetector() {
+        this(KNOWN_FORMATS);
+    }
+
+    /**
+     * Creates a detector of the supplied formats. Formats that
+     * come first win ties.
+     *
+     * @param formats The disk parameters of each format by name.
+     */
+    public DiskParameterBlockDetector(@NotNull Map<String, DiskParameterBlock> formats) {
+        for (var format : formats.entrySet()) {
+            var dpb = format.getValue();
+            candidates.put(format.getKey(), dpb);
+            if (dpb.skewTab().length > 0) {
+                // Images are often dumped in physical sector order
+                candidates.put(format.getKey() + " (no skew)", withSkewTab(dpb, new int[0]));
+            }
+        }
+    }
+
+    /**
+     * Gets the formats built into the detector.
+     *
+     * @return The disk parameters of each format by name.
+     */
+    public static Map<String, DiskParameterBlock> getKnownFormats() {
+        return KNOWN_FORMATS;
+    }
+
+    /**
+     * Scores every format against an image in a buffer,
+     * from index 0 to its limit.
+     *
+     * @param image The image.
+     * @return The candidates that fit the image, best first.
+     */
+    public List<Candidate> rank(@NotNull ByteBuffer image) {
+        try {
+            return rank(new Source() {
+                @Override
+                public long size() {
+                    return image.limit();
+                }
+
+                @Override
+                public void read(long position, ByteBuffer dst) {
+                    dst.put(dst.position(), image, (int)position, dst.remaining());
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Scores every format against an image file. Only the
+     * sampled sectors are read.
+     *
+     * @param channel The image.
+     * @return The candidates that fit the image, best first.
+     * @throws IOException If the image cannot be read.
+     */
+    public List<Candidate> rank(@NotNull FileChannel channel) throws IOException {
+        return rank(new Source() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void read(long position, ByteBuffer dst) throws IOException {
+                int offset = 0;
+                while (offset < dst.remaining()) {
+                    int read = channel.read(dst.slice(dst.position() + offset, dst.remaining() - offset), position + offset);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of image at " + (position + offset));
+                    }
+                    offset += read;
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds the best format for an image file, if it scores
+     * at least {@link #THRESHOLD}. This method may be passed
+     * as the detector of an {@link ImageCatalog}.
+     *
+     * @param channel The image.
+     * @return The disk parameters of the best format.
+     * @throws UncheckedIOException If the image cannot be read.
+     */
+    public Optional<DiskParameterBlock> detect(@NotNull FileChannel channel) {
+        try {
+            return rank(channel).stream()
+                    .findFirst()
+                    .filter(x -> x.score() >= THRESHOLD)
+                    .map(Candidate::dpb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Candidate> rank(Source image) throws IOException {
+        var ranked = new ArrayList<Candidate>();
+        for (var candidate : candidates.entrySet()) {
+            score(image, candidate.getKey(), candidate.getValue()).ifPresent(ranked::add);
+        }
+        ranked.sort(Comparator.comparingDouble(Candidate::score).reversed());
+        return ranked;
+    }
+
+    /**
+     * Scores a format by sampling its first directory sectors.
+     *
+     * @return The scored candidate, or empty if the image is too small for the format
+     */
+    private static Optional<Candidate> score(Source image, String name, DiskParameterBlock dpb) throws IOException {
+        var size = image.size();
+        var table = dpb.getSectorTranslationTable();
+        int sectorSize = dpb.sectorSize();
+        int directorySectors = Math.ceilDiv((dpb.numDirectoryEntries() + 1) * ENTRY_SIZE, sectorSize);
+        int samples = Math.min(SAMPLE_SECTORS, directorySectors);
+        int directoryBlocks = Integer.bitCount((dpb.directoryAllocationBitmap1() << 8) + dpb.directoryAllocationBitmap2());
+
+        int entries = 0;
+        int valid = 0;
+        int used = 0;
+        var sector = ByteBuffer.allocate(sectorSize);
+        for (int i = 0; i < samples; i++) {
+            long address = table.address(i / dpb.getBlockSectorCount(), i % dpb.getBlockSectorCount());
+            if (address + sectorSize > size) {
+                return Optional.empty();
+            }
+            image.read(address, sector.clear());
+            for (int offset = 0; offset < sectorSize; offset += ENTRY_SIZE) {
+                entries++;
+                var check = checkEntry(sector, offset, dpb, directoryBlocks);
+                if (check != EntryCheck.INVALID) {
+                    valid++;
+                }
+                if (check == EntryCheck.FILE) {
+                    used++;
+                }
+            }
+        }
+
+        // A plausible directory dominates; files and a matching size break ties between blank directories
+        boolean sizeMatches = size == dpb.getFilesystemSize() || size == (long)dpb.getFilesystemSize() + dpb.getOffsetBytes();
+        double score = 0.85 * valid / entries
+                + 0.05 * Math.min(used, samples) / samples
+                + (sizeMatches ? 0.1 : 0);
+        if (dpb.offset() > 0) {
+            // Sets apart formats that only differ by their reserved tracks on a freshly formatted image
+            image.read(0, sector.clear());
+            if (isBlank(sector)) {
+                score -= BLANK_BOOT_PENALTY;
+            }
+        }
+        return Optional.of(new Candidate(name, dpb, score));
+    }
+
+    /**
+     * Checks whether a sector is filled with a single byte, as
+     * formatting leaves it.
+     */
+    private static boolean isBlank(ByteBuffer sector) {
+        for (int i = 1; i < sector.limit(); i++) {
+            if (sector.get(i) != sector.get(0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a directory entry is unused, a plausible
+     * file or neither.
+     */
+    private static EntryCheck checkEntry(ByteBuffer sector, int offset, DiskParameterBlock dpb, int directoryBlocks) {
+        int stat = sector.get(offset) & 0xFF;
+        if (stat == EMPTY || stat == LABEL || stat == TIMESTAMPS) {
+            return EntryCheck.UNUSED;
+        }
+        if (stat > MAX_USER) {
+            return EntryCheck.INVALID;
+        }
+
+        // The high bits of the name hold the flags
+        for (int i = 1; i < 12; i++) {
+            int c = sector.get(offset + i) & 0x7F;
+            if (c < 0x20 || c > 0x7E) {
+                return EntryCheck.INVALID;
+            }
+        }
+        if ((sector.get(offset + 1) & 0x7F) == ' ') {
+            return EntryCheck.INVALID;
+        }
+
+        int extent = sector.get(offset + 12) & 0xFF;
+        int s2 = sector.get(offset + 14) & 0xFF;
+        int recordCount = sector.get(offset + 15) & 0xFF;
+        if (extent > 31 || s2 > 63 || recordCount > 0x80) {
+            return EntryCheck.INVALID;
+        }
+
+        for (int i = 0; i < dpb.getBlockPointersPerEntry(); i++) {
+            int pointer = dpb.getBlockPointerSize() == 1
+                    ? sector.get(offset + 16 + i) & 0xFF
+                    : (sector.get(offset + 16 + i * 2) & 0xFF) | (sector.get(offset + 17 + i * 2) & 0xFF) << 8;
+            if (pointer != 0 && (pointer < directoryBlocks || pointer > dpb.storageSize())) {
+                return EntryCheck.INVALID;
+            }
+        }
+        return EntryCheck.FILE;
+    }
+
+    private static DiskParameterBlock withSkewTab(DiskParameterBlock dpb, int[] skewTab) {
+        return new DiskParameterBlock(dpb.sectorSize(), dpb.recordsPerTack(), dpb.blockShiftFactor(), dpb.blockMask(),
+                dpb.extentMask(), dpb.storageSize(), dpb.numDirectoryEntries(), dpb.directoryAllocationBitmap1(),
+                dpb.directoryAllocationBitmap2(), dpb.checkVectorSize(), dpb.offset(), skewTab);
+    }
+
+    private static Map<String, DiskParameterBlock> knownFormats() {
+        var formats = new LinkedHashMap<String, DiskParameterBlock>();
+        formats.put("Z80RB", DiskParameterBlocks.Z80RB_DPB);
+        formats.put("Z80RB boot", DiskParameterBlocks.Z80RB_BOOT_DPB);
+        formats.put("Osborne 1", DiskParameterBlocks.OSBORNE_1_DPB);
+        formats.put("Ampro 400", DiskParameterBlocks.AMPRO_400_DPB);
+        return Collections.unmodifiableMap(formats);
+    }
+}
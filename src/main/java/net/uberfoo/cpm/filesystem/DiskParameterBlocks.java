@@ -0,0 +1,84 @@
+package net.uberfoo.cpm.filesystem;
+
+import static net.uberfoo.cpm.filesystem.DiskParameterBlock.createSkewTab;
+
+/**
+ * The disk parameters of well known disk formats.
+ */
+public final class DiskParameterBlocks {
+
+    private DiskParameterBlocks() {}
+
+    /**
+     * A partition of a Z80 Retro! board compact flash card.
+     */
+    public static final DiskParameterBlock Z80RB_DPB = new DiskParameterBlock(
+            512,
+            128,
+            5,
+            31,
+            1,
+            2047,
+            511,
+            240,
+            0,
+            0,
+            0,
+            new int[0]
+    );
+
+    /**
+     * The boot partition of a Z80 Retro! board compact flash card,
+     * which reserves a track for the boot loader.
+     */
+    public static final DiskParameterBlock Z80RB_BOOT_DPB = new DiskParameterBlock(
+            512,
+            128,
+            5,
+            31,
+            1,
+            2047,
+            511,
+            240,
+            0,
+            0,
+            1,
+            new int[0]
+    );
+
+    /**
+     * An Osborne 1 single density floppy.
+     */
+    public static final DiskParameterBlock OSBORNE_1_DPB = new DiskParameterBlock(
+            256,
+            20,
+            4,
+            15,
+            1,
+            45,
+            63,
+            0x80,
+            0x00,
+            0,
+            3,
+            createSkewTab(2, 10)
+    );
+
+    /**
+     * An Ampro 400 KB floppy.
+     */
+    public static final DiskParameterBlock AMPRO_400_DPB = new DiskParameterBlock(
+            512,
+            40,
+            4,
+            15,
+            1,
+            194,
+            127,
+            0xC0,
+            0x00,
+            32,
+            2,
+            new int[0]
+    );
+}
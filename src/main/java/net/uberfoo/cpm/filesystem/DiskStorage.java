@@ -0,0 +1,76 @@
+package net.uberfoo.cpm.filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The memory backing a disk image. A storage hands out buffer
+ * views of its memory and controls when that memory is flushed
+ * and released.
+ * <p>
+ * A {@link SegmentStorage} releases its memory when it is closed,
+ * and only then, while a {@link ByteBufferStorage} leaves that to
+ * the garbage collector.
+ */
+public interface DiskStorage extends Closeable {
+
+    /**
+     * Gets a view of a region of this storage. Writes to the view
+     * are writes to the storage.
+     *
+     * @param address The start of the region in bytes
+     * @param length The length of the region in bytes
+     * @return A buffer sharing the memory of the region
+     */
+    ByteBuffer slice(long address, int length);
+
+    /**
+     * Gets the size of this storage.
+     *
+     * @return A size in bytes
+     */
+    long size();
+
+    /**
+     * Writes any changes in a region of this storage to the
+     * underlying device, if there is one.
+     *
+     * @param address The start of the region in bytes
+     * @param length The length of the region in bytes
+     * @throws IOException If the changes cannot be written
+     */
+    void force(long address, int length) throws IOException;
+
+    /**
+     * Makes sure a region of this storage has been read from the
+     * underlying device before it is viewed. Storages that hold
+     * the whole image in memory have nothing to read.
+     *
+     * @param address The start of the region in bytes
+     * @param length The length of the region in bytes
+     * @throws IOException If the region cannot be read
+     */
+    default void load(long address, int length) throws IOException {
+    }
+
+    /**
+     * Checks whether this storage only reads regions from its device
+     * when they are loaded. Such a storage is viewed a region at a
+     * time, as a view of all of it would read or allocate all of it.
+     *
+     * @return True if regions are read on demand
+     */
+    default boolean isLoadedOnDemand() {
+        return false;
+    }
+
+    /**
+     * Checks whether the views of this storage are read-only.
+     *
+     * @return True if the storage cannot be written
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A channel that reads the contents of a file straight from the
+ * sectors of a disk. Each read visits only the sectors holding
+ * the requested bytes, so the file is never materialized in memory
+ * and the channel may be positioned anywhere in the file at no cost.
+ */
+public class FileContentsChannel implements SeekableByteChannel {
+
+    private final AllocationTableFile file;
+
+    private long position;
+    private boolean open = true;
+
+    FileContentsChannel(@NotNull AllocationTableFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads bytes of the file into the supplied buffer.
+     *
+     * @param dst The buffer to transfer bytes into
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws ClosedChannelException If the channel is closed
+     */
+    @Override
+    public int read(@NotNull ByteBuffer dst) throws ClosedChannelException {
+        ensureOpen();
+        return transfer(dst);
+    }
+
+    int transfer(@NotNull ByteBuffer dst) {
+        int read = file.read(position, dst);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws ClosedChannelException {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Moves the channel to a position in the file. Nothing is
+     * read until the next call to {@link #read(ByteBuffer)}.
+     *
+     * @param newPosition The new position in bytes
+     * @return This channel
+     * @throws ClosedChannelException If the channel is closed
+     */
+    @Override
+    public FileContentsChannel position(long newPosition) throws ClosedChannelException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws ClosedChannelException {
+        ensureOpen();
+        return file.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
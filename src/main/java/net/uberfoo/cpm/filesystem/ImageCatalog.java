@@ -0,0 +1,330 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Catalogs the files of every disk image in a directory tree.
+ * Each image is scanned as a separate task with its own channel.
+ * Images are opened read-only, so only the directory and the
+ * blocks of each file are read, once, to hash its contents.
+ * <p>
+ * Images with a partition table are scanned partition by partition.
+ * Other images are scanned with the disk parameters returned by
+ * the detector, such as {@link DiskParameterBlockDetector#detect(FileChannel)},
+ * and are skipped if there is none. Images that cannot be read are
+ * logged and skipped.
+ */
+public class ImageCatalog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageCatalog.class);
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final Object DONE = new Object();
+
+    /**
+     * A file found in an image.
+     *
+     * @param image The image file.
+     * @param label The label of the partition, or null for an image without a partition table.
+     * @param user The user number of the file.
+     * @param filename The complete name of the file.
+     * @param size The size of the file in bytes.
+     * @param hash The SHA-256 hash of the contents of the file, in hex.
+     */
+    public record Entry(@NotNull Path image, @Nullable String label, int user,
+                        @NotNull String filename, long size, @NotNull String hash) {}
+
+    private final Function<FileChannel, Optional<DiskParameterBlock>> detector;
+    private final Executor executor;
+
+    /**
+     * Creates a catalog of partitioned images only, scanning
+     * one image per available processor at a time.
+     */
+    public ImageCatalog() {
+        this(channel -> Optional.empty(), null);
+    }
+
+    /**
+     * Creates a catalog.
+     *
+     * @param detector Finds the disk parameters of an image without a partition table.
+     * @param executor The executor to scan images on, or null to scan on a pool of one thread per available
+     *                 processor. No more than one image per available processor is submitted at a time, and an
+     *                 executor may run images on the thread that reads the stream.
+     */
+    public ImageCatalog(@NotNull Function<FileChannel, Optional<DiskParameterBlock>> detector, @Nullable Executor executor) {
+        this.detector = detector;
+        this.executor = executor;
+    }
+
+    /**
+     * Scans every {@code .img} file under a directory.
+     *
+     * @param root The directory to scan.
+     * @return A stream of the files found, which must be closed.
+     * @throws IOException If the directory cannot be walked.
+     */
+    public Stream<Entry> scan(@NotNull Path root) throws IOException {
+        return scan(root, root.getFileSystem().getPathMatcher("glob:**.{img,IMG}"));
+    }
+
+    /**
+     * Scans every regular file under a directory that matches
+     * a path matcher. Images are scanned in parallel and their
+     * files are streamed as soon as they are found, so the order
+     * of the stream is undefined. Images are submitted as the stream
+     * is read, and an image the executor rejects is logged and
+     * skipped. Closing the stream stops the scan.
+     *
+     * @param root The directory to scan.
+     * @param matcher Selects the images to scan.
+     * @return A stream of the files found, which must be closed.
+     * @throws IOException If the directory cannot be walked.
+     */
+    public Stream<Entry> scan(@NotNull Path root, @NotNull PathMatcher matcher) throws IOException {
+        List<Path> images;
+        try (var walk = Files.walk(root)) {
+            images = walk.filter(Files::isRegularFile)
+                    .filter(matcher::matches)
+                    .toList();
+        }
+
+        ThreadPoolExecutor owned = null;
+        if (executor == null) {
+            // Idle threads exit, so a stream that is never closed does not hold the pool
+            owned = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            owned.allowCoreThreadTimeOut(true);
+        }
+        var pool = owned;
+        var scan = new Scan(images.iterator(), pool == null ? executor : pool);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan, Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    scan.cancel();
+                    if (pool != null) {
+                        pool.shutdownNow();
+                    }
+                });
+    }
+
+    /**
+     * Scans the files of a single image.
+     *
+     * @param image The image file.
+     * @return The files found.
+     * @throws IOException If the image cannot be read.
+     */
+    public List<Entry> scanImage(@NotNull Path image) throws IOException {
+        var entries = new ArrayList<Entry>();
+        scanImage(image, entries::add);
+        return entries;
+    }
+
+    private void scanImage(Path image, Consumer<Entry> sink) throws IOException {
+        try (var channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            var table = readPartitionTable(channel);
+            if (table.isPresent()) {
+                for (var partition : table.get().getEntries()) {
+                    try (var disk = CpmDisk.openReadOnly(partition.diskParameterBlock(), channel, partition.offset())) {
+                        scanDisk(image, partition.label(), disk, sink);
+                    }
+                }
+                return;
+            }
+
+            var dpb = detector.apply(channel);
+            if (dpb.isEmpty()) {
+                LOG.debug("Skipping image without disk parameters: {}", image);
+                return;
+            }
+            try (var disk = CpmDisk.openReadOnly(dpb.get(), channel, 0)) {
+                scanDisk(image, null, disk, sink);
+            }
+        }
+    }
+
+    private static void scanDisk(Path image, String label, CpmDisk disk, Consumer<Entry> sink) {
+        var digest = newDigest();
+        var chunk = ByteBuffer.allocate(disk.getDpb().getBlockSize());
+        for (var file : disk.getFiles()) {
+            try (var channel = file.newChannel()) {
+                while (channel.read(chunk.clear()) > 0) {
+                    digest.update(chunk.flip());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            sink.accept(new Entry(image, label, file.getStat(), file.getFilename(), file.size(),
+                    HexFormat.of().formatHex(digest.digest())));
+        }
+    }
+
+    private static Optional<PartitionTable> readPartitionTable(FileChannel channel) throws IOException {
+        if (channel.size() < PartitionTable.HEADER_SIZE) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new PartitionTable(channel));
+        } catch (InvalidObjectException | ClassNotFoundException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The state of a running scan. The consumer submits images as it
+     * reads, keeping a bounded number running. Image tasks put their
+     * entries and then a done marker into a bounded queue, so a slow
+     * consumer holds the tasks back. A task that runs on the consumer's
+     * own thread cannot wait for it, so its entries are held aside
+     * until they are read. The stream ends once every image submitted
+     * is done and there are none left.
+     */
+    private final class Scan implements Iterator<Entry> {
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Deque<Object> inline = new ArrayDeque<>();
+        private final Iterator<Path> images;
+        private final Executor executor;
+        private volatile Thread consumer;
+        private volatile boolean cancelled;
+        private int running;
+        private Object next;
+
+        Scan(Iterator<Path> images, Executor executor) {
+            this.images = images;
+            this.executor = executor;
+        }
+
+        private void submit() {
+            while (!cancelled && running < PARALLELISM && inline.isEmpty() && images.hasNext()) {
+                var image = images.next();
+                running++;
+                try {
+                    executor.execute(() -> run(image));
+                } catch (RejectedExecutionException e) {
+                    running--;
+                    LOG.warn("Skipping image rejected by the executor: {}", image, e);
+                }
+            }
+        }
+
+        private void run(Path image) {
+            try {
+                if (!cancelled) {
+                    scanImage(image, this::put);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled) {
+                    LOG.warn("Skipping unreadable image: {}", image, e);
+                }
+            } finally {
+                put(DONE);
+            }
+        }
+
+        private void put(Object element) {
+            if (Thread.currentThread() == consumer) {
+                inline.add(element);
+                return;
+            }
+            try {
+                // Wait for the consumer to catch up or to close the stream
+                boolean offered = false;
+                while (!cancelled && !offered) {
+                    offered = queue.offer(element, 100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+            }
+            if (cancelled && element != DONE) {
+                throw new CancellationException();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+
+        @Override
+        public boolean hasNext() {
+            consumer = Thread.currentThread();
+            while (next == null) {
+                submit();
+                if (cancelled || (running == 0 && inline.isEmpty())) {
+                    return false;
+                }
+                try {
+                    next = inline.isEmpty() ? queue.take() : inline.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    return false;
+                }
+                if (next == DONE) {
+                    running--;
+                    next = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var entry = (Entry) next;
+            next = null;
+            return entry;
+        }
+    }
+}
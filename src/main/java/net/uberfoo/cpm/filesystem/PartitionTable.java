@@ -4,8 +4,8 @@ import com.google.flatbuffers.FlatBufferBuilder;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class PartitionTable {
@@ -13,6 +13,13 @@ public class PartitionTable {
     private static final byte[] MAGIC = { 0x25, 0x01 };
     public static final int HEADER_SIZE = MAGIC.length + Integer.BYTES;
 
+    // Written to the original 32 bit offset field when the offset does not fit,
+    // so that readers without offset64 fail instead of using a wrong offset
+    private static final long OFFSET32_OVERFLOW = 0xFFFF_FFFFL;
+
+    // An encoded table is a few dozen bytes per partition
+    private static final int MAX_TABLE_SIZE = 1024 * 1024;
+
     private final List<PartitionTableEntry> entries;
 
     public PartitionTable() {
@@ -38,6 +45,7 @@ public class PartitionTable {
         }
 
         var size = buffer.getInt(buffer.limit() - Integer.BYTES);
+        checkSize(size, buffer.limit());
         var slice = buffer.slice(buffer.limit() - size - HEADER_SIZE, size);
 
         var encodedTable = EncodedPartitionTable.getRootAsEncodedPartitionTable(slice);
@@ -45,16 +53,74 @@ public class PartitionTable {
         entries = new ArrayList<>(encodedTable.entriesLength());
         for (int i = 0; i < encodedTable.entriesLength(); i++) {
             var entry = encodedTable.entries(i);
-            entries.add(new PartitionTableEntry((int)entry.offset(), entry.label(), new DiskParameterBlock(entry)));
+            var offset = entry.offset64() != 0 ? entry.offset64() : entry.offset();
+            if (offset == OFFSET32_OVERFLOW) {
+                throw new InvalidObjectException("Not a valid partition table. Offset of " + entry.label() + " is missing");
+            }
+            entries.add(new PartitionTableEntry(offset, entry.label(), new DiskParameterBlock(entry)));
         }
    }
 
+    /**
+     * Constructs a PartitionTable from the end of a disk image file.
+     * Only the encoded table is read from the channel.
+     *
+     * @param channel The disk image
+     * @throws IOException If there are errors reading the channel or the contents are invalid
+     * @throws ClassNotFoundException If buffer contents are incorrect classes
+     */
+    public PartitionTable(FileChannel channel) throws IOException, ClassNotFoundException {
+        this(readEncodedTable(channel));
+    }
+
+    /**
+     * Reads the encoded table from the end of a file. The header is
+     * read and checked first, so that nothing is allocated for the
+     * table of a file that is not a partitioned image.
+     */
+    private static ByteBuffer readEncodedTable(FileChannel channel) throws IOException {
+        var fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            throw new InvalidObjectException("Not a valid partition table. File size = " + fileSize);
+        }
+
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, fileSize - HEADER_SIZE);
+        var magic = new byte[MAGIC.length];
+        header.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new InvalidObjectException("Not a valid partition table. Magic = " + Arrays.toString(magic));
+        }
+        var size = header.getInt(MAGIC.length);
+        checkSize(size, fileSize);
+
+        var buffer = ByteBuffer.allocate(size + HEADER_SIZE);
+        readFully(channel, buffer, fileSize - HEADER_SIZE - size);
+        return buffer.rewind();
+    }
+
+    private static void checkSize(int size, long imageSize) throws InvalidObjectException {
+        if (size <= 0 || size > MAX_TABLE_SIZE || size > imageSize - HEADER_SIZE) {
+            throw new InvalidObjectException("Not a valid partition table. Size = " + size);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
     /**
      * Encodes this table into disk format. The encoded format
      * consists of an arbitrarily sizes list of serialized
      * PartitionTableEntry objects. Followed by the magic
      * constant and the size of the serialized objects as a
-     * 4 byte integer.
+     * 4 byte integer. Offsets are written to offset64; an
+     * offset that does not fit the original 32 bit field is
+     * written there as 0xFFFFFFFF, which older readers reject.
      *
      * @return A ByteBuffer containing the encoded form
      * @throws IOException
@@ -70,7 +136,7 @@ public class PartitionTable {
             var skewTab = CpmPartitionTableEntry.createSkewTabVector(builder, dpb.skewTab());
             var encodedEntry = CpmPartitionTableEntry.createCpmPartitionTableEntry(builder,
                     label,
-                    entry.offset(),
+                    entry.offset() < OFFSET32_OVERFLOW ? entry.offset() : OFFSET32_OVERFLOW,
                     dpb.sectorSize(),
                     dpb.recordsPerTack(),
                     dpb.blockShiftFactor(),
@@ -82,7 +148,8 @@ public class PartitionTable {
                     dpb.directoryAllocationBitmap2(),
                     dpb.checkVectorSize(),
                     dpb.offset(),
-                    skewTab
+                    skewTab,
+                    entry.offset()
                     );
             entriesArr[i] = encodedEntry;
         }
@@ -116,11 +183,11 @@ public class PartitionTable {
         return entries.size();
     }
 
-    public int diskSize() {
-        return (int)entries.stream()
+    public long diskSize() {
+        return entries.stream()
                 .map(PartitionTableEntry::diskParameterBlock)
-                .map(DiskParameterBlock::getFilesystemSize)
-                .collect(Collectors.summarizingInt(x -> x)).getSum();
+                .mapToLong(DiskParameterBlock::getFilesystemSize)
+                .sum();
     }
 
     public PartitionTableEntry get(int index) {
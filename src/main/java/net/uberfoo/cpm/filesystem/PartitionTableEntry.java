@@ -2,6 +2,6 @@ package net.uberfoo.cpm.filesystem;
 
 import java.io.Serializable;
 
-public record PartitionTableEntry(int offset, String label, DiskParameterBlock diskParameterBlock) implements Serializable {
+public record PartitionTableEntry(long offset, String label, DiskParameterBlock diskParameterBlock) implements Serializable {
 
 }
@@ -1,59 +1,394 @@
 package net.uberfoo.cpm.filesystem;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
+/**
+ * A disk image divided into labeled CP/M partitions. Partitions
+ * read from a partition table are opened on demand, so the
+ * directory of a partition is only parsed the first time its
+ * disk is accessed.
+ */
 public class PartitionedDisk {
 
-    private List<LabeledDisk> disks;
+    /**
+     * Opens the filesystem of a single partition.
+     */
+    @FunctionalInterface
+    private interface PartitionLoader {
+        CpmDisk load(PartitionTableEntry entry) throws IOException;
+    }
+
+    /**
+     * Copies the filesystem of a single partition, as stored in
+     * the image, to a file without opening it.
+     */
+    @FunctionalInterface
+    private interface PartitionCopier {
+        void copy(PartitionTableEntry entry, FileChannel target, long position) throws IOException;
+    }
+
+    /**
+     * A partition whose disk is opened and cached the
+     * first time it is resolved.
+     */
+    private static final class Partition {
+        private final String label;
+        private final DiskParameterBlock dpb;
+        private final PartitionTableEntry entry;
+        private final PartitionLoader loader;
+        private final PartitionCopier copier;
+        private volatile LabeledDisk disk;
+
+        Partition(LabeledDisk disk) {
+            this.label = disk.label();
+            this.dpb = disk.disk().getDpb();
+            this.entry = null;
+            this.loader = null;
+            this.copier = null;
+            this.disk = disk;
+        }
+
+        Partition(PartitionTableEntry entry, PartitionLoader loader, PartitionCopier copier) {
+            this.label = entry.label();
+            this.dpb = entry.diskParameterBlock();
+            this.entry = entry;
+            this.loader = loader;
+            this.copier = copier;
+        }
+
+        /**
+         * Writes the filesystem of this partition to a file. A
+         * partition that has not been opened is copied from the
+         * image as it is, without opening it.
+         */
+        void writeTo(FileChannel target, long position) throws IOException {
+            var result = disk;
+            if (result == null) {
+                copier.copy(entry, target, position);
+            } else {
+                write(target, result.disk().getBuffer(), position);
+            }
+        }
+
+        LabeledDisk resolve() {
+            var result = disk;
+            if (result == null) {
+                synchronized (this) {
+                    result = disk;
+                    if (result == null) {
+                        try {
+                            result = new LabeledDisk(label, loader.load(entry));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        disk = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final Executor SAME_THREAD = Runnable::run;
+    private static final int COPY_CHUNK_SIZE = 1 << 20;
+
+    private final List<Partition> partitions;
+    private final boolean readOnly;
 
     public PartitionedDisk() {
-        disks = new LinkedList<>();
+        partitions = new ArrayList<>();
+        readOnly = false;
     }
 
     public PartitionedDisk(ByteBuffer buffer, PartitionTable table) throws IOException, ClassNotFoundException {
-        disks = new ArrayList<>(table.size());
-        for (var entry : table.getEntries()) {
-            var diskBuffer = buffer.slice(entry.offset(), entry.diskParameterBlock().getFilesystemSize());
-            disks.add(new LabeledDisk(entry.label(), new CpmDisk(entry.diskParameterBlock(), diskBuffer)));
-        }
+        partitions = partitions(table, entry -> new CpmDisk(entry.diskParameterBlock(), slice(buffer, entry)),
+                (entry, target, position) -> write(target, slice(buffer, entry), position));
+        readOnly = buffer.isReadOnly();
+    }
+
+    /**
+     * Opens the partitions of a disk image buffer in parallel, parsing
+     * the directory of each partition as a separate task.
+     *
+     * @param buffer The buffer containing the disk image.
+     * @param table The partition table of the disk image.
+     * @param executor The executor to parse the partitions on.
+     * @throws IOException If there is a filesystem error.
+     */
+    public PartitionedDisk(ByteBuffer buffer, PartitionTable table, Executor executor) throws IOException {
+        partitions = partitions(table, entry -> new CpmDisk(entry.diskParameterBlock(), slice(buffer, entry)),
+                (entry, target, position) -> write(target, slice(buffer, entry), position));
+        readOnly = buffer.isReadOnly();
+        resolveAll(executor);
     }
 
     public PartitionedDisk(ByteBuffer buffer) throws IOException, ClassNotFoundException {
         this(buffer, new PartitionTable(buffer));
     }
 
+    /**
+     * Opens a partitioned disk image file. Each partition is mapped
+     * into memory as its own segment when it is first accessed, so
+     * partitions may lie anywhere in an image larger than 2 GB. If
+     * the channel is not open for writing, the disks are read-only.
+     *
+     * @param channel The file channel of the disk image.
+     * @param table The partition table of the disk image.
+     * @throws IOException If there is a filesystem error.
+     */
+    public PartitionedDisk(FileChannel channel, PartitionTable table) throws IOException {
+        partitions = partitions(table, entry -> new CpmDisk(entry.diskParameterBlock(), channel, entry.offset()),
+                (entry, target, position) -> copy(channel, entry, target, position));
+        readOnly = !isWritable(channel);
+    }
+
+    /**
+     * Opens the partitions of a disk image file in parallel, mapping
+     * and parsing the directory of each partition as a separate task.
+     *
+     * @param channel The file channel of the disk image.
+     * @param table The partition table of the disk image.
+     * @param executor The executor to open the partitions on.
+     * @throws IOException If there is a filesystem error.
+     */
+    public PartitionedDisk(FileChannel channel, PartitionTable table, Executor executor) throws IOException {
+        partitions = partitions(table, entry -> new CpmDisk(entry.diskParameterBlock(), channel, entry.offset()),
+                (entry, target, position) -> copy(channel, entry, target, position));
+        readOnly = !isWritable(channel);
+        resolveAll(executor);
+    }
+
+    /**
+     * Opens a partitioned disk image file, reading the partition
+     * table from the end of the file.
+     *
+     * @param channel The file channel of the disk image.
+     * @throws IOException If there is a filesystem error.
+     * @throws ClassNotFoundException If the partition table is invalid.
+     */
+    public PartitionedDisk(FileChannel channel) throws IOException, ClassNotFoundException {
+        this(channel, new PartitionTable(channel));
+    }
+
+    /**
+     * Gets a list of the disks in this image. Each disk is
+     * opened when its element is first read from the list.
+     *
+     * @return An unmodifiable list of disks.
+     * @throws UncheckedIOException If a partition cannot be opened.
+     */
     public List<LabeledDisk> getDisks() {
-        return Collections.unmodifiableList(disks);
+        return new AbstractList<>() {
+            @Override
+            public LabeledDisk get(int index) {
+                return partitions.get(index).resolve();
+            }
+
+            @Override
+            public int size() {
+                return partitions.size();
+            }
+        };
     }
 
     public boolean add(LabeledDisk disk) {
-        return disks.add(disk);
+        return partitions.add(new Partition(disk));
     }
 
+    /**
+     * Gets a disk by its position in the image, opening it
+     * if it has not been accessed yet.
+     *
+     * @param index The position of the partition.
+     * @return The disk.
+     * @throws UncheckedIOException If the partition cannot be opened.
+     */
     public LabeledDisk get(int index) {
-        return disks.get(index);
+        return partitions.get(index).resolve();
     }
 
+    /**
+     * Gets a disk by its label, opening it if it has not been
+     * accessed yet. No other partition is opened.
+     *
+     * @param label The label of the partition.
+     * @return An optional with the disk if found.
+     * @throws UncheckedIOException If the partition cannot be opened.
+     */
     public Optional<LabeledDisk> get(String label) {
-        return disks.stream().filter(x -> x.label().equals(label)).findFirst();
+        return partitions.stream()
+                .filter(x -> x.label.equals(label))
+                .findFirst()
+                .map(Partition::resolve);
     }
 
-    public int getDiskSize() {
-        return disks.stream()
-                .map(LabeledDisk::disk)
-                .map(CpmDisk::getDpb)
-                .mapToInt(DiskParameterBlock::getFilesystemSize)
+    /**
+     * Gets the labels of the partitions in this image, in order.
+     * No partition is opened.
+     *
+     * @return A list of labels.
+     */
+    public List<String> getLabels() {
+        return partitions.stream()
+                .map(x -> x.label)
+                .toList();
+    }
+
+    /**
+     * Checks whether the image was opened from a read-only buffer
+     * or a channel that is not open for writing, in which case
+     * every disk of the image is read-only.
+     *
+     * @return True if the disks cannot be written
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Checks whether the disk of a partition has been opened.
+     *
+     * @param index The position of the partition.
+     * @return True if the disk has been opened.
+     */
+    public boolean isLoaded(int index) {
+        return partitions.get(index).disk != null;
+    }
+
+    public long getDiskSize() {
+        return partitions.stream()
+                .map(x -> x.dpb)
+                .mapToLong(DiskParameterBlock::getFilesystemSize)
                 .sum();
     }
 
+    /**
+     * Writes the partitions and the partition table of this disk
+     * straight to a file, without building a copy of the whole
+     * image in memory.
+     *
+     * @param channel The file channel to write the image to.
+     * @throws IOException If an error occurs writing the file.
+     */
+    public void createDisk(FileChannel channel) throws IOException {
+        createDisk(channel, SAME_THREAD);
+    }
+
+    /**
+     * Writes the partitions and the partition table of this disk
+     * straight to a file. Each partition is written with positional
+     * writes as a separate task, so partitions are written in parallel.
+     * Partitions that have not been opened are copied from the image
+     * without being opened.
+     *
+     * @param channel The file channel to write the image to.
+     * @param executor The executor to write the partitions on.
+     * @throws IOException If an error occurs writing the file.
+     */
+    public void createDisk(FileChannel channel, Executor executor) throws IOException {
+        var table = createPartitionTable();
+        var entries = table.getEntries();
+        var tasks = new ArrayList<CompletableFuture<Void>>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            var partition = partitions.get(i);
+            var offset = entries.get(i).offset();
+            tasks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    partition.writeTo(channel, offset);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        join(tasks);
+        write(channel, table.encode(), table.diskSize());
+    }
+
+    /**
+     * Checks whether a channel is open for writing by writing
+     * nothing to it.
+     */
+    private static boolean isWritable(FileChannel channel) throws IOException {
+        try {
+            channel.write(ByteBuffer.allocate(0), 0);
+            return true;
+        } catch (NonWritableChannelException e) {
+            return false;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Copies the filesystem of a partition from one file to another
+     * with positional reads and writes. Whatever lies past the end
+     * of the source file is left unwritten.
+     */
+    private static void copy(FileChannel source, PartitionTableEntry entry, FileChannel target, long position) throws IOException {
+        long length = entry.diskParameterBlock().getFilesystemSize();
+        var chunk = ByteBuffer.allocateDirect((int)Math.min(COPY_CHUNK_SIZE, length));
+        for (long copied = 0; copied < length; ) {
+            chunk.clear().limit((int)Math.min(chunk.capacity(), length - copied));
+            int read = source.read(chunk, entry.offset() + copied);
+            if (read < 0) {
+                break;
+            }
+            write(target, chunk.flip(), position + copied);
+            copied += read;
+        }
+    }
+
+    private static List<Partition> partitions(PartitionTable table, PartitionLoader loader, PartitionCopier copier) {
+        return table.getEntries().stream()
+                .map(entry -> new Partition(entry, loader, copier))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, PartitionTableEntry entry) {
+        return buffer.slice(Math.toIntExact(entry.offset()), entry.diskParameterBlock().getFilesystemSize());
+    }
+
+    private void resolveAll(Executor executor) throws IOException {
+        join(partitions.stream()
+                .map(x -> CompletableFuture.runAsync(x::resolve, executor))
+                .toList());
+    }
+
+    /**
+     * Waits for every task and rethrows the first I/O error.
+     */
+    private static <T> List<T> join(List<CompletableFuture<T>> tasks) throws IOException {
+        try {
+            return CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new))
+                    .thenApply(x -> tasks.stream().map(CompletableFuture::join).toList())
+                    .join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException cause) {
+                throw cause.getCause();
+            }
+            throw e;
+        }
+    }
+
     public ByteBuffer createDisk() throws IOException {
         var table = createPartitionTable();
         var encodedTable = table.encode();
-        var buffer = ByteBuffer.allocate(table.diskSize() + encodedTable.limit());
-        for (var disk : disks) {
-            buffer.put(disk.disk().getBuffer());
+        var buffer = ByteBuffer.allocate(Math.toIntExact(table.diskSize() + encodedTable.limit()));
+        for (var partition : partitions) {
+            buffer.put(partition.resolve().disk().getBuffer());
         }
         buffer.put(encodedTable);
 
@@ -61,12 +396,12 @@ public class PartitionedDisk {
     }
 
     private PartitionTable createPartitionTable() {
-        int offset = 0;
+        long offset = 0;
         var table = new PartitionTable();
-        for (var disk : disks) {
-            var entry = new PartitionTableEntry(offset, disk.label(), disk.disk().getDpb());
+        for (var partition : partitions) {
+            var entry = new PartitionTableEntry(offset, partition.label, partition.dpb);
             table.add(entry);
-            offset += disk.disk().getDpb().getFilesystemSize();
+            offset += partition.dpb.getFilesystemSize();
         }
         return table;
     }
@@ -0,0 +1,97 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A precomputed mapping of the logical sectors of each block to
+ * physical byte addresses according to a set of disk parameters.
+ * Disks with a skew table get a flat lookup table covering every
+ * sector of the filesystem; disks without one are mapped with a
+ * multiply and an add. Runs of logical sectors that are also
+ * physically consecutive are recorded, so that they can be copied
+ * in one piece even when the disk is skewed.
+ */
+public final class SectorTranslationTable {
+
+    private final int sectorSize;
+    private final int sectorsPerTrack;
+    private final int blockSectorCount;
+    private final int offsetSectors;
+    private final int[] skewTab;
+    private final int[] addresses;
+    private final int[] runs;
+
+    SectorTranslationTable(@NotNull DiskParameterBlock dpb) {
+        sectorSize = dpb.sectorSize();
+        sectorsPerTrack = dpb.getSectorsPerTrack();
+        blockSectorCount = dpb.getBlockSectorCount();
+        offsetSectors = dpb.getOffsetBytes() / sectorSize;
+        skewTab = dpb.skewTab();
+
+        if (skewTab.length == 0) {
+            addresses = null;
+            runs = null;
+        } else {
+            // Cover every sector up to the end of the track holding the last block
+            int sectors = offsetSectors + (dpb.storageSize() + 1) * blockSectorCount;
+            sectors = Math.ceilDiv(sectors, sectorsPerTrack) * sectorsPerTrack;
+            addresses = new int[sectors];
+            for (int i = 0; i < sectors; i++) {
+                addresses[i] = translate(i);
+            }
+            runs = new int[sectors];
+            for (int i = sectors - 1; i >= 0; i--) {
+                runs[i] = i + 1 < sectors && addresses[i + 1] == addresses[i] + sectorSize ? runs[i + 1] + 1 : 1;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of sectors of a block, starting at a sector,
+     * that are stored consecutively on the disk.
+     *
+     * @param blockPointer The block
+     * @param sector The first logical sector within the block
+     * @return A count of sectors between 1 and the rest of the block
+     */
+    public int contiguousSectors(long blockPointer, int sector) {
+        var remaining = blockSectorCount - sector;
+        var logicalSector = offsetSectors + (int)blockPointer * blockSectorCount + sector;
+        if (runs == null) {
+            return remaining;
+        }
+        if (logicalSector < runs.length) {
+            return Math.min(runs[logicalSector], remaining);
+        }
+        int count = 1;
+        while (count < remaining && translate(logicalSector + count) == translate(logicalSector) + count * sectorSize) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the physical address of a sector of a block.
+     *
+     * @param blockPointer The block
+     * @param sector The logical sector within the block
+     * @return An address in bytes
+     */
+    public int address(long blockPointer, int sector) {
+        var logicalSector = offsetSectors + (int)blockPointer * blockSectorCount + sector;
+        if (addresses == null) {
+            return logicalSector * sectorSize;
+        }
+        if (logicalSector < addresses.length) {
+            return addresses[logicalSector];
+        }
+        return translate(logicalSector);
+    }
+
+    private int translate(int logicalSector) {
+        var logicalTrackSector = logicalSector % sectorsPerTrack;
+        var track = logicalSector / sectorsPerTrack;
+        var physicalTrackSector = skewTab.length == 0 ? logicalTrackSector : skewTab[logicalTrackSector];
+        return (track * sectorsPerTrack + physicalTrackSector) * sectorSize;
+    }
+}
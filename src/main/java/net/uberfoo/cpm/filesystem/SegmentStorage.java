@@ -0,0 +1,90 @@
+package net.uberfoo.cpm.filesystem;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A storage backed by a memory segment, either mapped from a
+ * region of a file or allocated off the heap. The segment is
+ * only released when the storage is closed; views of it throw
+ * {@link IllegalStateException} once it has been. Views stay
+ * valid for as long as the storage is open, even if the storage
+ * itself is no longer reachable, so a storage that is never
+ * closed holds its segment until the JVM exits.
+ * <p>
+ * A mapped region may be larger than 2 GB and may start anywhere
+ * in a file, so one storage can hold a whole partitioned image.
+ */
+public class SegmentStorage implements DiskStorage {
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    /**
+     * Creates a storage by mapping a region of the supplied channel.
+     * The channel may be closed once the storage has been created.
+     *
+     * @param channel The channel to map
+     * @param mode The mapping mode
+     * @param offset The start of the region in the channel
+     * @param size The size of the region
+     * @throws IOException If the region cannot be mapped
+     */
+    public SegmentStorage(@NotNull FileChannel channel, @NotNull FileChannel.MapMode mode, long offset, long size) throws IOException {
+        this.arena = Arena.ofShared();
+        try {
+            this.segment = channel.map(mode, offset, size, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a storage of zeroed memory allocated off the heap.
+     *
+     * @param size The size of the storage
+     */
+    public SegmentStorage(long size) {
+        this.arena = Arena.ofShared();
+        this.segment = arena.allocate(size);
+    }
+
+    @Override
+    public ByteBuffer slice(long address, int length) {
+        return segment.asSlice(address, length).asByteBuffer();
+    }
+
+    @Override
+    public long size() {
+        return segment.byteSize();
+    }
+
+    @Override
+    public void force(long address, int length) {
+        if (segment.isMapped()) {
+            segment.asSlice(address, length).force();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return segment.isReadOnly();
+    }
+
+    /**
+     * Releases the segment. Closing a storage more than once
+     * has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (arena.scope().isAlive()) {
+            arena.close();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import net.uberfoo.cpm.filesystem.test.TestDiskParameterBlocks;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -155,6 +156,41 @@ public class AllocationTableEntryTest {
 
     }
 
+    @Test
+    public void testDecodeCopiesBytes() throws Exception {
+        var bytes = BIGTREK_ENTRY_2.clone();
+        var entry = new AllocationTableEntry(4, 11, bytes, TestDiskParameterBlocks.Z80RB_DPB);
+
+        assertThat(entry.getBlockPointerCount(), equalTo(8));
+        assertThat(entry.getBlockPointer(0), equalTo(0x0011));
+        assertThat(entry.getBlockPointer(2), equalTo(0x0000));
+
+        // Later changes to the array are not seen by the entry
+        bytes[0] = (byte)0xE5;
+        bytes[18] = 0x34;
+        bytes[19] = 0x02;
+        assertThat(entry.getStat(), equalTo(0));
+        assertThat(entry.getBlockPointer(1), equalTo(0x0012));
+        assertThat(entry.encode(), equalTo(BIGTREK_ENTRY_2));
+    }
+
+    @Test
+    public void testEncodeRecordCountOfSecondLogicalExtent() throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var disk = CpmDisk.makeFilesystem(dpb);
+
+        // 157 records fill one logical extent of an entry and spill 29 into the next
+        var file = disk.createFile("BIG.TXT", 0x00, new BitSet(11), ByteBuffer.allocate(20000));
+        var entry = disk.getAllocationBlocks().get(0).getAllocationTable()[0];
+        var bytes = entry.encode();
+        assertThat(bytes[12], equalTo((byte)0x01));
+        assertThat(bytes[14], equalTo((byte)0x00));
+        assertThat(bytes[15], equalTo((byte)29));
+        assertThat(entry.getExtent(), equalTo(0));
+        assertThat(entry.getRecordCount(), equalTo(157));
+        assertThat(file.size(), equalTo(157L * 128));
+    }
+
     @Test
     public void testEncodeFromDecodes() throws Exception {
         var buffer = ByteBuffer.allocate((int)TestDiskParameterBlocks.Z80RB_DPB.getFilesystemSize());
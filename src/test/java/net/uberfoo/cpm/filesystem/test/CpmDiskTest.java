@@ -1,23 +1,39 @@
 package net.uberfoo.cpm.filesystem.test;
 
 import net.uberfoo.cpm.filesystem.AllocationTableFile;
+import net.uberfoo.cpm.filesystem.ByteBufferStorage;
 import net.uberfoo.cpm.filesystem.CpmDisk;
 import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import net.uberfoo.cpm.filesystem.SegmentStorage;
 import org.hamcrest.MatcherAssert;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
+import java.nio.file.ReadOnlyFileSystemException;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.ceilDiv;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class CpmDiskTest {
 
@@ -64,6 +80,351 @@ public class CpmDiskTest {
         assertThat("File system is empty", disk.getFilesStream().count() == 0);
     }
 
+    @Test
+    public void testUnusedBlocksTracked() throws Exception {
+        var disk = makeZ80RBDisk();
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var dirBlocks = 4;
+        assertThat(disk.getUnusedBlockCount(), is(dpb.storageSize() + 1 - dirBlocks));
+        assertThat(disk.getUnusedBlocks().findFirst().orElseThrow(), is((long)dirBlocks));
+
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        var file = disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+        var numBlocks = ceilDiv(fileBuffer.capacity(), dpb.getBlockSize());
+        assertThat(file.getBlockPointers(), hasSize(numBlocks));
+        assertThat(disk.getUnusedBlockCount(), is(dpb.storageSize() + 1 - dirBlocks - numBlocks));
+        assertThat(disk.getUnusedBlocks().anyMatch(file.getBlockPointers()::contains), is(false));
+
+        disk.deleteFile("BIGTREK.BAS", 0x00);
+        assertThat(disk.getUnusedBlockCount(), is(dpb.storageSize() + 1 - dirBlocks));
+
+        // The block claimed for an empty file is given back, not a directory block
+        disk.createFile("EMPTY.TXT", 0x00, new BitSet(11), ByteBuffer.allocate(0));
+        assertThat(disk.getUnusedBlockCount(), is(dpb.storageSize() + 1 - dirBlocks));
+        assertThat(disk.getUnusedBlocks().findFirst().orElseThrow(), is((long)dirBlocks));
+    }
+
+    @Test
+    public void testFindFileNormalizesName() throws Exception {
+        var disk = makeZ80RBDisk();
+
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        disk.createFile("bigtrek.bas", 0x03, new BitSet(11), fileBuffer);
+
+        assertThat("File is found regardless of case", disk.findFile("BIGTREK.BAS", 0x03).isPresent());
+        assertThat("File is found by its 8.3 name", disk.findFile("BIGTREK.BASIC", 0x03).isPresent());
+        assertThat("File is not present under different user number", disk.findFile("BIGTREK.BAS", 0x00).isEmpty());
+        assertThrows(FileAlreadyExistsException.class,
+                () -> disk.createFile("BIGTREK.BAS", 0x03, new BitSet(11), fileBuffer.rewind()));
+        assertThat(disk.getFiles(), hasSize(1));
+    }
+
+    @Test
+    public void testStreamFileContents() throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb, ByteBuffer.allocate(dpb.getFilesystemSize()));
+
+            var fileBuffer = loadFile("BIGTREK.BAS");
+            disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+            fileBuffer.rewind();
+
+            var fileEntry = disk.findFile("BIGTREK.BAS", 0x00).orElseThrow();
+            try (var in = fileEntry.newInputStream()) {
+                var contents = in.readAllBytes();
+                assertThat((long)contents.length, is(fileEntry.size()));
+                assertThat(ByteBuffer.wrap(contents, 0, fileBuffer.remaining()), equalTo(fileBuffer));
+            }
+            assertFileIsCorrect(fileBuffer, fileEntry);
+        }
+    }
+
+    @Test
+    public void testCreateFileFromStream() throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb, ByteBuffer.allocate(dpb.getFilesystemSize()));
+
+            var fileBuffer = loadFile("BIGTREK.BAS");
+            try (var in = new ByteArrayInputStream(fileBuffer.array())) {
+                disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), in);
+            }
+            assertFileIsCorrect(fileBuffer, disk.findFile("BIGTREK.BAS", 0x00).orElseThrow());
+
+            // Exactly one block
+            var blockBuffer = fileBuffer.slice(0, dpb.getBlockSize());
+            disk.createFile("BLOCK.BAS", 0x00, new BitSet(11), new ByteArrayInputStream(fileBuffer.array(), 0, dpb.getBlockSize()));
+            assertFileIsCorrect(blockBuffer, disk.findFile("BLOCK.BAS", 0x00).orElseThrow());
+
+            disk.createFile("EMPTY", 0x00, new BitSet(11), new ByteArrayInputStream(new byte[0]));
+            var empty = disk.findFile("EMPTY", 0x00).orElseThrow();
+            assertThat(empty.size(), is(0L));
+            assertThat(empty.getBlockPointers(), hasSize(0));
+        }
+    }
+
+    @Test
+    public void testCreateFileReleasesBlocksOnFailure() throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            var unused = disk.getUnusedBlockCount();
+
+            // The source fails with an unchecked exception after a few blocks
+            var source = new ByteArrayInputStream(new byte[dpb.getBlockSize() * 3]) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (available() == 0) {
+                        throw new IllegalStateException("Source failed");
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            assertThrows(IllegalStateException.class, () -> disk.createFile("FAIL.TXT", 0x00, new BitSet(11), source));
+            assertThat(disk.getUnusedBlockCount(), is(unused));
+            assertThat(disk.findFile("FAIL.TXT", 0x00).isEmpty(), is(true));
+
+            disk.reload();
+            assertThat(disk.getUnusedBlockCount(), is(unused));
+        }
+    }
+
+    @Test
+    public void testSingleBytePointers() throws Exception {
+        var dpb = TestDiskParameterBlocks.OSBORNE_1_DPB;
+        assertThat(dpb.getBlockPointersPerEntry(), is(16));
+        var disk = CpmDisk.makeFilesystem(dpb, ByteBuffer.allocate(dpb.getFilesystemSize()));
+
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+        fileBuffer.rewind();
+
+        // 20 blocks fit in two entries
+        var entries = Arrays.stream(disk.getAllocationBlocks().get(0).getAllocationTable())
+                .filter(x -> x.getStat() != 0xE5)
+                .toList();
+        assertThat(entries, hasSize(2));
+        assertThat(entries.get(0).getBlockPointers(), hasSize(16));
+        assertThat(entries.get(0).getRecordCount(), is(16 * dpb.getBlockRecordCount()));
+        assertThat(entries.get(1).getExtent(), is(1));
+        assertThat(entries.get(1).getBlockPointers().stream().filter(x -> x != 0).count(), is(4L));
+
+        disk.refresh();
+        assertFileIsCorrect(fileBuffer, disk.findFile("BIGTREK.BAS", 0x00).orElseThrow());
+    }
+
+    @Test
+    public void testCreateFiles() throws Exception {
+        var disk = makeZ80RBDisk();
+        var bigtrek = loadFile("BIGTREK.BAS");
+        var sample = loadFile("sample-2mb-text-file.txt");
+
+        var batch = new ArrayList<CpmDisk.FileImport>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(new CpmDisk.FileImport("TREK" + i + ".BAS", i % 4, new BitSet(11), bigtrek.duplicate()));
+        }
+        batch.add(new CpmDisk.FileImport("SAMPLE.TXT", 0, new BitSet(11), sample.duplicate()));
+        batch.add(new CpmDisk.FileImport("EMPTY", 0, new BitSet(11), ByteBuffer.allocate(0)));
+
+        var created = disk.createFiles(batch);
+        assertThat(created, hasSize(22));
+        assertThat(disk.getFiles(), hasSize(22));
+
+        for (int i = 0; i < 20; i++) {
+            assertFileIsCorrect(bigtrek, disk.findFile("TREK" + i + ".BAS", i % 4).orElseThrow());
+        }
+        assertFileIsCorrect(sample, disk.findFile("SAMPLE.TXT", 0).orElseThrow());
+        assertThat(disk.findFile("EMPTY", 0).orElseThrow().size(), is(0L));
+
+        // Blocks are allocated in ascending order across the batch
+        var blocks = created.stream().flatMap(x -> x.getBlockPointers().stream()).toList();
+        assertThat(blocks, equalTo(blocks.stream().sorted().toList()));
+
+        // A batch with a duplicate name creates nothing
+        var unused = disk.getUnusedBlockCount();
+        var duplicate = List.of(
+                new CpmDisk.FileImport("NEW.BAS", 0, new BitSet(11), bigtrek.duplicate()),
+                new CpmDisk.FileImport("TREK1.BAS", 1, new BitSet(11), bigtrek.duplicate()));
+        assertThrows(FileAlreadyExistsException.class, () -> disk.createFiles(duplicate));
+        assertThat(disk.getUnusedBlockCount(), is(unused));
+        assertThat(disk.findFile("NEW.BAS", 0).isEmpty(), is(true));
+
+        // A batch that doesn't fit creates nothing
+        var tooLarge = new ArrayList<CpmDisk.FileImport>();
+        for (int i = 0; i < 4; i++) {
+            tooLarge.add(new CpmDisk.FileImport("LARGE" + i + ".TXT", 0, new BitSet(11), sample.duplicate()));
+        }
+        assertThrows(IOException.class, () -> disk.createFiles(tooLarge));
+        assertThat(disk.getUnusedBlockCount(), is(unused));
+    }
+
+    @Test
+    public void testRefreshAndReload(@TempDir Path tempDir) throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        try (var channel = FileChannel.open(tempDir.resolve("disk.img"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var disk = CpmDisk.makeFilesystem(dpb, channel.map(FileChannel.MapMode.READ_WRITE, 0, dpb.getFilesystemSize()));
+            assertThat("Formatted disk is dirty", disk.isDirty());
+            disk.refresh();
+            assertThat("Refreshed disk is clean", !disk.isDirty());
+
+            var fileBuffer = loadFile("BIGTREK.BAS");
+            disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+            assertThat("Disk is dirty after a write", disk.isDirty());
+            disk.refresh();
+            assertThat("Refreshed disk is clean", !disk.isDirty());
+            fileBuffer.rewind();
+            assertFileIsCorrect(fileBuffer, disk.findFile("BIGTREK.BAS", 0x00).orElseThrow());
+
+            // Changes made outside the disk are only seen after a reload
+            var table = disk.getAllocationBlocks().get(0).getAllocationTable();
+            assertThat(table[0].getFullFilename(), is("BIGTREK.BAS"));
+            assertThat(table[1].getFullFilename(), is("BIGTREK.BAS"));
+            disk.getBuffer().put(0, (byte) 0xE5).put(32, (byte) 0xE5);
+            assertThat("File is still indexed", disk.findFile("BIGTREK.BAS", 0x00).isPresent());
+            disk.reload();
+            assertThat("File is no longer present.", disk.findFile("BIGTREK.BAS", 0x00).isEmpty());
+            assertThat(disk.getUnusedBlockCount(), is(dpb.storageSize() + 1 - 4));
+        }
+    }
+
+    @Test
+    public void testFormatFileChannel(@TempDir Path tempDir) throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_BOOT_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var image = tempDir.resolve(dpb.hashCode() + ".img");
+            var dataBlocks = new BitSet();
+            dataBlocks.set(10);
+            try (var channel = FileChannel.open(image, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.position(512);
+                var disk = CpmDisk.makeFilesystem(dpb, channel, dataBlocks);
+                assertThat(channel.size(), is(512L + dpb.getFilesystemSize()));
+                assertThat(disk.getFiles(), hasSize(0));
+                assertThat(disk.getUnusedBlockCount(), is(CpmDisk.makeFilesystem(dpb).getUnusedBlockCount()));
+
+                // System tracks and requested blocks are filled, the rest of the data area is not
+                var table = dpb.getSectorTranslationTable();
+                assertThat(disk.getBuffer().get(0), is((byte) 0xE5));
+                assertThat(disk.getBuffer().get(table.address(10, 0)), is((byte) 0xE5));
+                assertThat(disk.getBuffer().get(table.address(20, 0)), is((byte) 0));
+
+                var fileBuffer = loadFile("BIGTREK.BAS");
+                disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer.duplicate());
+                disk.close();
+                assertFileIsCorrect(fileBuffer, new CpmDisk(dpb, channel, 512).findFile("BIGTREK.BAS", 0x00).orElseThrow());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseFlushesStorage() throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var image = ByteBuffer.allocate(dpb.getFilesystemSize());
+        CpmDisk.makeFilesystem(dpb, image);
+
+        var storage = new ByteBufferStorage(image) {
+            int forced;
+            int forces;
+            boolean closed;
+
+            @Override
+            public void force(long address, int length) {
+                forced += length;
+                forces++;
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+        var disk = new CpmDisk(dpb, storage);
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+        assertThat("Disk is dirty after a write", disk.isDirty());
+
+        disk.close();
+        assertThat("Storage is closed", storage.closed);
+        assertThat("Dirty sectors were forced", storage.forced >= fileBuffer.capacity());
+
+        // A batch is forced once, although its data and directory sectors are apart
+        var batch = new ArrayList<CpmDisk.FileImport>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new CpmDisk.FileImport("TREK" + i + ".BAS", 0, new BitSet(11), fileBuffer.duplicate().rewind()));
+        }
+        storage.forces = 0;
+        new CpmDisk(dpb, storage).createFiles(batch);
+        assertThat(storage.forces, is(1));
+
+        fileBuffer.rewind();
+        assertFileIsCorrect(fileBuffer, new CpmDisk(dpb, image).findFile("BIGTREK.BAS", 0x00).orElseThrow());
+    }
+
+    @Test
+    public void testCloseUnmapsSegment(@TempDir Path tempDir) throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        try (var channel = FileChannel.open(tempDir.resolve("disk.img"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Map the filesystem after 3 GB of padding, past where a byte buffer can reach
+            channel.position(3L << 30);
+            var disk = CpmDisk.makeFilesystem(dpb, channel, new BitSet());
+            disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer.duplicate());
+            var view = disk.getBuffer();
+            disk.close();
+            assertThrows(IllegalStateException.class, view::get);
+
+            var storage = new SegmentStorage(channel, FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try (var reopened = new CpmDisk(dpb, storage.slice(3L << 30, dpb.getFilesystemSize()))) {
+                assertFileIsCorrect(fileBuffer, reopened.findFile("BIGTREK.BAS", 0x00).orElseThrow());
+                assertThat("Storage is read-only", storage.isReadOnly());
+            } finally {
+                storage.close();
+            }
+
+            // A view outlives a storage that is no longer reachable but was never closed
+            var directory = new SegmentStorage(channel, FileChannel.MapMode.READ_ONLY, 3L << 30, dpb.getFilesystemSize())
+                    .slice(0, dpb.sectorSize());
+            for (int i = 0; i < 5; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertThat(directory.get(1), is((byte) 'B'));
+        }
+    }
+
+    @Test
+    public void testConcurrentCreateAndRead() throws Exception {
+        var disk = makeZ80RBDisk();
+        var fileBuffer = loadFile("BIGTREK.BAS");
+        disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), fileBuffer);
+
+        var pool = Executors.newFixedThreadPool(8);
+        try {
+            var tasks = new ArrayList<Future<?>>();
+            for (int i = 0; i < 64; i++) {
+                var name = "FILE" + i + ".DAT";
+                var contents = new byte[1000 + i * 997];
+                Arrays.fill(contents, (byte) i);
+                tasks.add(pool.submit(() -> {
+                    disk.createFile(name, 0x00, new BitSet(11), new ByteArrayInputStream(contents));
+                    assertFileIsCorrect(ByteBuffer.wrap(contents), disk.findFile(name, 0x00).orElseThrow());
+                    return null;
+                }));
+                tasks.add(pool.submit(() -> {
+                    assertFileIsCorrect(fileBuffer.duplicate().rewind(), disk.findFile("BIGTREK.BAS", 0x00).orElseThrow());
+                    return null;
+                }));
+            }
+            for (var task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(disk.getFiles(), hasSize(65));
+        var used = disk.getUsedBlocks().filter(x -> x != 0).toList();
+        assertThat("No block is shared", new HashSet<>(used), hasSize(used.size()));
+        assertThat(disk.getUnusedBlockCount(), is(TestDiskParameterBlocks.Z80RB_DPB.storageSize() + 1 - 4 - used.size()));
+    }
+
     @Test
     public void testFromGamesDisk() throws Exception {
 
@@ -116,6 +477,258 @@ public class CpmDiskTest {
 
     }
 
+    @Test
+    public void testFromAmproDisk() throws Exception {
+        var disk = new CpmDisk(TestDiskParameterBlocks.AMPRO_400_DPB, loadFile("system1.img"));
+
+        assertThat(disk.getFiles(), hasSize(63));
+        assertThat(disk.getUnusedBlockCount(), is(28));
+
+        var pip = disk.findFile("PIP.COM", 0x00).orElseThrow();
+        assertThat(pip.size(), is(7424L));
+        assertThat(pip.retrieveFileContents().get(0), is((byte)0xC3));
+    }
+
+    @Test
+    public void testOpenReadOnly() throws Exception {
+        var dpb = TestDiskParameterBlocks.AMPRO_400_DPB;
+        var disk = new CpmDisk(dpb, loadFile("system1.img"));
+        try (var channel = FileChannel.open(Path.of(ClassLoader.getSystemResource("system1.img").toURI()))) {
+            var readOnly = CpmDisk.openReadOnly(dpb, channel, 0);
+            assertThat(readOnly.isReadOnly(), is(true));
+            // Only what has been read is held, so there is no view of the whole image
+            assertThrows(UnsupportedOperationException.class, readOnly::getBuffer);
+            assertThat(readOnly.getFiles().toString(), equalTo(disk.getFiles().toString()));
+            assertThat(readOnly.getUnusedBlockCount(), is(disk.getUnusedBlockCount()));
+
+            for (var file : readOnly.getFiles()) {
+                assertThat(file.retrieveFileContents(),
+                        equalTo(disk.findFile(file.getFilename(), file.getStat()).orElseThrow().retrieveFileContents()));
+            }
+
+            assertThrows(ReadOnlyFileSystemException.class, () -> readOnly.deleteFile("PIP.COM", 0x00));
+            assertThrows(ReadOnlyFileSystemException.class,
+                    () -> readOnly.createFile("NEW.TXT", 0x00, new BitSet(11), ByteBuffer.allocate(1)));
+            assertThat("File is still present", readOnly.findFile("PIP.COM", 0x00).isPresent());
+        }
+    }
+
+    @Test
+    public void testDirectoryTracksEntryWrites() throws Exception {
+        var disk = new CpmDisk(TestDiskParameterBlocks.AMPRO_400_DPB, loadFile("system1.img"));
+        var used = disk.getUsedEntries().count();
+        var unused = disk.getUnusedBlockCount();
+
+        var pip = disk.findFile("PIP.COM", 0x00).orElseThrow();
+        pip.delete();
+        assertThat("file is deleted", disk.findFile("PIP.COM", 0x00).isEmpty());
+        assertThat(disk.getFiles(), hasSize(62));
+        assertThat(disk.getUnusedBlockCount(), is(unused + pip.getBlockPointers().size()));
+
+        var reopened = new CpmDisk(TestDiskParameterBlocks.AMPRO_400_DPB, disk.getBuffer());
+        assertThat(reopened.getUsedEntries().count(), is(disk.getUsedEntries().count()));
+        assertThat(reopened.getUsedEntries().count(), lessThan(used));
+        assertThat(reopened.getUnusedBlockCount(), is(disk.getUnusedBlockCount()));
+        assertThat(reopened.getFiles().toString(), equalTo(disk.getFiles().toString()));
+    }
+
+    @Test
+    public void testReadAtPosition() throws Exception {
+        var pip = new CpmDisk(TestDiskParameterBlocks.AMPRO_400_DPB, loadFile("system1.img"))
+                .findFile("PIP.COM", 0x00).orElseThrow();
+        var contents = pip.retrieveFileContents();
+
+        // Records inside a sector, across sectors and across blocks
+        for (long position : new long[] { 0, 100, 2000, 2040, 4096, pip.size() - 128 }) {
+            var record = ByteBuffer.allocate(128);
+            assertThat(pip.read(position, record), is(128));
+            assertThat(record.flip(), equalTo(contents.slice((int)position, 128)));
+        }
+
+        var tail = ByteBuffer.allocate(128);
+        assertThat(pip.read(pip.size() - 28, tail), is(28));
+        assertThat(pip.read(pip.size(), tail.clear()), is(-1));
+
+        // Skewed disks are read one sector at a time
+        var disk = CpmDisk.makeFilesystem(TestDiskParameterBlocks.OSBORNE_1_DPB);
+        var bigtrek = loadFile("BIGTREK.BAS");
+        var file = disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), bigtrek.duplicate());
+        var record = ByteBuffer.allocate(1000);
+        assertThat(file.read(3000, record), is(1000));
+        assertThat(record.flip(), equalTo(bigtrek.slice(3000, 1000)));
+    }
+
+    @Test
+    public void testBlockCache() throws Exception {
+        var disk = CpmDisk.makeFilesystem(TestDiskParameterBlocks.OSBORNE_1_DPB);
+        var bigtrek = loadFile("BIGTREK.BAS");
+        var file = disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), bigtrek.duplicate());
+        long blocks = file.getBlockPointers().size();
+        disk.setBlockCacheSize((int) blocks);
+
+        // Reading the whole file reassembles each block once
+        assertFileIsCorrect(bigtrek.duplicate(), file);
+        assertThat(disk.getBlockCacheMisses(), is(blocks));
+        var hits = disk.getBlockCacheHits();
+        assertFileIsCorrect(bigtrek.duplicate(), file);
+        assertThat(disk.getBlockCacheMisses(), is(blocks));
+        assertThat(disk.getBlockCacheHits(), greaterThan(hits));
+
+        // Channel reads are served from the same cache
+        hits = disk.getBlockCacheHits();
+        var record = ByteBuffer.allocate(128);
+        try (var channel = file.newChannel()) {
+            channel.position(300).read(record);
+        }
+        assertThat(record.flip(), equalTo(bigtrek.slice(300, 128)));
+        assertThat(disk.getBlockCacheMisses(), is(blocks));
+        assertThat(disk.getBlockCacheHits(), greaterThan(hits));
+
+        // Writing a block drops it from the cache
+        file.write(10, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        file.read(0, record.clear());
+        assertThat(record.get(12), is((byte) 3));
+
+        // Contiguous blocks are read in place
+        var z80rb = makeZ80RBDisk();
+        z80rb.setBlockCacheSize(2);
+        assertFileIsCorrect(bigtrek.duplicate(), z80rb.createFile("BIGTREK.BAS", 0x00, new BitSet(11), bigtrek.duplicate()));
+        assertThat(z80rb.getBlockCacheMisses(), is(0L));
+    }
+
+    @Test
+    public void testAppendAndOverwrite() throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            var file = disk.createFile("LOG.TXT", 0x02, new BitSet(11), ByteBuffer.wrap(new byte[100]));
+            var bigtrek = loadFile("BIGTREK.BAS");
+
+            // Grow the last extent, then spill into a second one
+            assertThat(file.append(bigtrek.duplicate()), is(bigtrek.limit()));
+            assertThat(disk.getUsedEntries().count(), is(2L));
+            assertThat(file.size(), is(128L + bigtrek.limit()));
+            assertThat(file.retrieveFileContents().slice(128, bigtrek.limit()), equalTo(bigtrek));
+
+            // Overwriting inside the file claims nothing
+            var unused = disk.getUnusedBlockCount();
+            var patch = ByteBuffer.wrap(new byte[300]);
+            file.write(1000, patch.duplicate());
+            assertThat(disk.getUnusedBlockCount(), is(unused));
+
+            var reopened = new CpmDisk(dpb, disk.getBuffer()).findFile("LOG.TXT", 0x02).orElseThrow();
+            assertThat(reopened.size(), is(file.size()));
+            assertThat(reopened.retrieveFileContents().slice(1000, 300), equalTo(patch));
+            assertThat(reopened.retrieveFileContents().slice(1300, bigtrek.limit() - 1172), equalTo(bigtrek.slice(1172, bigtrek.limit() - 1172)));
+        }
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            var unused = disk.getUnusedBlockCount();
+            var bigtrek = loadFile("BIGTREK.BAS");
+            var file = disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), bigtrek.duplicate());
+            assertThat(disk.getUsedEntries().count(), is(ceilDiv((long) ceilDiv(bigtrek.limit(), dpb.getBlockSize()), dpb.getBlockPointersPerEntry())));
+
+            // Shrinking frees the trailing blocks and entries
+            file.truncate(1000);
+            assertThat(file.size(), is(1024L));
+            assertThat(file.getBlockPointers(), hasSize(1));
+            assertThat(disk.getUnusedBlockCount(), is(unused - 1));
+            assertThat(disk.getUsedEntries().count(), is(1L));
+
+            var reopened = new CpmDisk(dpb, disk.getBuffer());
+            var truncated = reopened.findFile("BIGTREK.BAS", 0x00).orElseThrow();
+            assertThat(truncated.size(), is(1024L));
+            assertThat(truncated.retrieveFileContents().slice(0, 1000), equalTo(bigtrek.slice(0, 1000)));
+            assertThat(reopened.getUnusedBlockCount(), is(unused - 1));
+
+            // Growing is not truncating
+            file.truncate(5000);
+            assertThat(file.size(), is(1024L));
+
+            file.truncate(0);
+            assertThat(file.size(), is(0L));
+            assertThat(file.getBlockPointers(), hasSize(0));
+            assertThat(disk.getUnusedBlockCount(), is(unused));
+            assertThat(disk.findFile("BIGTREK.BAS", 0x00).isPresent(), is(true));
+        }
+    }
+
+    @Test
+    public void testWriteFileWithHoles() throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var disk = CpmDisk.makeFilesystem(dpb);
+
+        // A random access file whose first block was never written
+        var entry = new byte[32];
+        System.arraycopy("HOLES   DAT".getBytes(), 0, entry, 1, 11);
+        entry[15] = (byte) (2 * dpb.getBlockRecordCount());
+        entry[18] = 10;
+        disk.writeAllocEntry(0, 0, entry);
+        var holes = disk.findFile("HOLES.DAT", 0x00).orElseThrow();
+
+        assertThrows(IOException.class, () -> holes.append(ByteBuffer.allocate(1)));
+        assertThrows(IOException.class, () -> holes.truncate(0));
+        assertThat(disk.findFile("HOLES.DAT", 0x00).orElseThrow().getBlockPointers(), equalTo(List.of(10L)));
+
+        // An empty write never grows a file
+        var file = disk.createFile("SMALL.TXT", 0x00, new BitSet(11), ByteBuffer.allocate(10));
+        assertThat(file.write(100000, ByteBuffer.allocate(0)), is(0));
+        assertThat(file.size(), is(128L));
+        assertThat(file.getBlockPointers(), hasSize(1));
+    }
+
+    @Test
+    public void testSkewedSectorRuns() throws Exception {
+        var osborne = TestDiskParameterBlocks.OSBORNE_1_DPB;
+        // The same geometry with sectors skewed in pairs, so blocks have runs of two sectors
+        var paired = new DiskParameterBlock(osborne.sectorSize(), osborne.recordsPerTack(), osborne.blockShiftFactor(),
+                osborne.blockMask(), osborne.extentMask(), osborne.storageSize(), osborne.numDirectoryEntries(),
+                osborne.directoryAllocationBitmap1(), osborne.directoryAllocationBitmap2(), osborne.checkVectorSize(),
+                osborne.offset(), new int[] { 0, 1, 4, 5, 8, 9, 2, 3, 6, 7 });
+        assertThat(osborne.getSectorTranslationTable().contiguousSectors(0, 0), is(1));
+        assertThat(paired.getSectorTranslationTable().contiguousSectors(0, 0), is(2));
+
+        var contents = new byte[10 * osborne.getBlockSize() + 300];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31 + i / 256);
+        }
+        var patch = new byte[3 * osborne.sectorSize()];
+        Arrays.fill(patch, (byte) 0x5A);
+        System.arraycopy(patch, 0, contents, 1000, patch.length);
+
+        for (var dpb : new DiskParameterBlock[] { osborne, paired }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            var file = disk.createFile("SKEWED.DAT", 0x00, new BitSet(11), ByteBuffer.wrap(contents));
+            file.write(1000, ByteBuffer.wrap(patch));
+
+            // Every logical sector lands where the translation table puts it
+            var table = dpb.getSectorTranslationTable();
+            var image = disk.getBuffer();
+            var pointers = file.getBlockPointers();
+            for (int b = 0; b < pointers.size(); b++) {
+                for (int i = 0; i < dpb.getBlockSectorCount(); i++) {
+                    int start = b * dpb.getBlockSize() + i * dpb.sectorSize();
+                    int length = Math.min(dpb.sectorSize(), contents.length - start);
+                    if (length > 0) {
+                        assertThat(image.slice(table.address(pointers.get(b), i), length),
+                                equalTo(ByteBuffer.wrap(contents, start, length)));
+                    }
+                }
+            }
+
+            // Reads reassemble the runs, also across sector boundaries
+            assertThat(file.retrieveFileContents().slice(0, contents.length), equalTo(ByteBuffer.wrap(contents)));
+            try (var channel = file.newChannel()) {
+                var buffer = ByteBuffer.allocate(700);
+                channel.position(200).read(buffer);
+                assertThat(buffer.flip(), equalTo(ByteBuffer.wrap(contents, 200, 700)));
+            }
+        }
+    }
+
     private static ByteBuffer loadFile(String filename) throws Exception {
         try (FileChannel channel = FileChannel.open(Path.of(ClassLoader.getSystemResource(filename).toURI()))) {
             var buffer = ByteBuffer.allocate((int) channel.size());
@@ -0,0 +1,231 @@
+package net.uberfoo.cpm.filesystem.test;
+
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.CpmFileSystem;
+import net.uberfoo.cpm.filesystem.CpmFileSystemProvider;
+import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import net.uberfoo.cpm.filesystem.LabeledDisk;
+import net.uberfoo.cpm.filesystem.PartitionedDisk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CpmFileSystemTest {
+
+    @Test
+    public void testMountPartitionedImage(@TempDir Path tempDir) throws Exception {
+        var bigtrek = loadBigtrek();
+        var driveC = makeDisk(TestDiskParameterBlocks.Z80RB_DPB);
+        driveC.createFile("BIGTREK.BAS", 3, new BitSet(11), ByteBuffer.wrap(bigtrek));
+
+        var partitionedDisk = new PartitionedDisk();
+        partitionedDisk.add(new LabeledDisk("BOOT", makeDisk(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        partitionedDisk.add(new LabeledDisk("Drive C", driveC));
+
+        var image = tempDir.resolve("disk.img");
+        try (var channel = FileChannel.open(image, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            partitionedDisk.createDisk(channel);
+        }
+
+        try (var fs = FileSystems.newFileSystem(image)) {
+            assertThat(fs, instanceOf(CpmFileSystem.class));
+            try (var list = Files.list(fs.getPath("/"))) {
+                assertThat(list.map(Path::toString).toList(), contains("/BOOT", "/Drive C"));
+            }
+            try (var walk = Files.walk(fs.getPath("/"))) {
+                assertThat(walk.filter(Files::isRegularFile).map(Path::toString).toList(), contains("/Drive C/3/BIGTREK.BAS"));
+            }
+
+            var file = fs.getPath("/Drive C/3/BIGTREK.BAS");
+            var contents = Files.readAllBytes(file);
+            assertThat(Arrays.copyOf(contents, bigtrek.length), equalTo(bigtrek));
+
+            var copy = tempDir.resolve("BIGTREK.BAS");
+            Files.copy(file, copy);
+            assertThat(Files.readAllBytes(copy), equalTo(contents));
+
+            assertThat(file.toUri().toString(), endsWith("!/Drive%20C/3/BIGTREK.BAS"));
+            assertThat(fs.provider().getPath(file.toUri()), equalTo(file));
+        }
+    }
+
+    @Test
+    public void testSeekableRead(@TempDir Path tempDir) throws Exception {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var bigtrek = loadBigtrek();
+            var disk = makeDisk(dpb);
+            disk.createFile("BIGTREK.BAS", 0, new BitSet(11), ByteBuffer.wrap(bigtrek));
+            var image = Files.write(tempDir.resolve("disk.img"), disk.getBuffer().array());
+
+            try (var fs = FileSystems.newFileSystem(image, Map.of(CpmFileSystemProvider.DPB_ENV, dpb));
+                 var channel = Files.newByteChannel(fs.getPath("/0/bigtrek.bas"))) {
+                assertThat(channel.size(), is(disk.findFile("BIGTREK.BAS", 0).orElseThrow().size()));
+                for (int position : new int[] { 0, 127, 2047, 2048, 5000, bigtrek.length - 200 }) {
+                    var buffer = ByteBuffer.allocate(200);
+                    channel.position(position).read(buffer);
+                    assertThat(buffer.array(), equalTo(Arrays.copyOfRange(bigtrek, position, position + 200)));
+                }
+                channel.position(channel.size());
+                assertThat(channel.read(ByteBuffer.allocate(1)), is(-1));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteCopyAndDelete() throws Exception {
+        var disk = makeDisk(TestDiskParameterBlocks.Z80RB_DPB);
+        try (var fs = CpmFileSystem.of(disk)) {
+            var hello = fs.getPath("/0/HELLO.TXT");
+            Files.write(hello, "Hello, world".getBytes());
+            assertThat(disk.findFile("HELLO.TXT", 0).isPresent(), is(true));
+            assertThat(Files.size(hello), is((long) DiskParameterBlock.getRecordSize()));
+
+            var copy = fs.getPath("/5/HELLO.TXT");
+            Files.copy(hello, copy);
+            assertThat(Files.readAllBytes(copy), equalTo(Files.readAllBytes(hello)));
+            assertThrows(FileAlreadyExistsException.class, () -> Files.copy(hello, copy));
+
+            try (var channel = Files.newByteChannel(copy, StandardOpenOption.WRITE)) {
+                channel.position(100).truncate(0);
+                assertThat(channel.position(), is(0L));
+            }
+            assertThat(Files.size(copy), is(0L));
+
+            Files.delete(hello);
+            assertThat(Files.exists(hello), is(false));
+            assertThat(Files.isDirectory(fs.getPath("/0")), is(true));
+            assertThrows(NoSuchFileException.class, () -> Files.size(fs.getPath("/16/HELLO.TXT")));
+        }
+    }
+
+    @Test
+    public void testReadWriteChannel() throws Exception {
+        var disk = makeDisk(TestDiskParameterBlocks.Z80RB_DPB);
+        try (var fs = CpmFileSystem.of(disk)) {
+            var hello = fs.getPath("/0/HELLO.TXT");
+            Files.write(hello, "Hello, world".getBytes());
+
+            try (var channel = Files.newByteChannel(hello, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.position(7).write(ByteBuffer.wrap("CP/M!".getBytes()));
+                var buffer = ByteBuffer.allocate(12);
+                channel.position(0).read(buffer);
+                assertThat(new String(buffer.array()), is("Hello, CP/M!"));
+                assertThat(channel.position(), is(12L));
+                assertThrows(IllegalArgumentException.class, () -> channel.position(-1));
+            }
+            try (var channel = Files.newByteChannel(hello, StandardOpenOption.WRITE)) {
+                assertThrows(NonReadableChannelException.class, () -> channel.read(ByteBuffer.allocate(1)));
+            }
+        }
+    }
+
+    @Test
+    public void testCreateAndTruncateChannels() throws Exception {
+        var disk = makeDisk(TestDiskParameterBlocks.Z80RB_DPB);
+        try (var fs = CpmFileSystem.of(disk)) {
+            var file = fs.getPath("/0/DATA.BIN");
+            var ones = new byte[100];
+            Arrays.fill(ones, (byte) 1);
+
+            // A new file is created up front and written in place
+            try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                assertThat(disk.findFile("DATA.BIN", 0).isPresent(), is(true));
+                channel.write(ByteBuffer.wrap(ones));
+            }
+            assertThat(Arrays.copyOf(Files.readAllBytes(file), 100), equalTo(ones));
+
+            // The old contents are kept until the replacement is closed
+            try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(ones));
+                channel.truncate(10).position(50).write(ByteBuffer.wrap(new byte[] { 2 }));
+                assertThat(channel.size(), is(51L));
+                assertThat(Arrays.copyOf(Files.readAllBytes(file), 100), equalTo(ones));
+            }
+            var expected = new byte[DiskParameterBlock.getRecordSize()];
+            Arrays.fill(expected, 0, 10, (byte) 1);
+            expected[50] = 2;
+            assertThat(Files.readAllBytes(file), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testMoveAndReplaceSameFile() throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var disk = makeDisk(dpb);
+        try (var fs = CpmFileSystem.of(disk)) {
+            var lower = fs.getPath("/0/foo.txt");
+            var upper = fs.getPath("/0/FOO.TXT");
+            Files.write(lower, "Hello, world".getBytes());
+            var contents = Files.readAllBytes(lower);
+            assertThat(Files.isSameFile(lower, upper), is(true));
+            assertThat(Files.isSameFile(lower, fs.getPath("/1/FOO.TXT")), is(false));
+
+            Files.move(lower, upper, StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(upper, lower, StandardCopyOption.REPLACE_EXISTING);
+            assertThat(Files.readAllBytes(upper), equalTo(contents));
+
+            // A replacement that does not fit leaves the old file in place
+            assertThrows(IOException.class, () -> Files.write(upper, new byte[dpb.getFilesystemSize()]));
+            assertThat(Files.readAllBytes(upper), equalTo(contents));
+            assertThat(disk.getFiles(), hasSize(1));
+        }
+    }
+
+    @Test
+    public void testReadOnlyPartitionedImage(@TempDir Path tempDir) throws Exception {
+        var driveC = makeDisk(TestDiskParameterBlocks.Z80RB_DPB);
+        driveC.createFile("BIGTREK.BAS", 3, new BitSet(11), ByteBuffer.wrap(loadBigtrek()));
+        var partitionedDisk = new PartitionedDisk();
+        partitionedDisk.add(new LabeledDisk("BOOT", makeDisk(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        partitionedDisk.add(new LabeledDisk("Drive C", driveC));
+
+        var image = tempDir.resolve("disk.img");
+        try (var channel = FileChannel.open(image, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            partitionedDisk.createDisk(channel);
+        }
+
+        try (var channel = FileChannel.open(image, StandardOpenOption.READ);
+             var fs = CpmFileSystem.of(new PartitionedDisk(channel))) {
+            var file = fs.getPath("/Drive C/3/BIGTREK.BAS");
+            assertThat(fs.isReadOnly(), is(true));
+            assertThat(Files.isReadable(file), is(true));
+            assertThat(Files.isWritable(file), is(false));
+            assertThat(Files.isExecutable(file), is(false));
+            assertThrows(ReadOnlyFileSystemException.class, () -> Files.write(file, new byte[1]));
+
+            var store = Files.getFileStore(file);
+            assertThat(store.name(), is("Drive C"));
+            assertThat(store.isReadOnly(), is(true));
+            assertThat(store.getTotalSpace(), is((long) TestDiskParameterBlocks.Z80RB_DPB.getFilesystemSize()));
+            assertThat(store.getUnallocatedSpace(), is((long) driveC.getUnusedBlockCount() * TestDiskParameterBlocks.Z80RB_DPB.getBlockSize()));
+            assertThat(store.getUsableSpace(), is(0L));
+        }
+    }
+
+    private static byte[] loadBigtrek() throws Exception {
+        return Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI()));
+    }
+
+    private static CpmDisk makeDisk(DiskParameterBlock dpb) throws IOException {
+        return CpmDisk.makeFilesystem(dpb, ByteBuffer.allocate(dpb.getFilesystemSize()));
+    }
+}
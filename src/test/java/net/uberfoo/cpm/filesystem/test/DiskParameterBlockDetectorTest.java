@@ -0,0 +1,101 @@
+package net.uberfoo.cpm.filesystem.test;
+
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import net.uberfoo.cpm.filesystem.DiskParameterBlockDetector;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class DiskParameterBlockDetectorTest {
+
+    @Test
+    public void testDetectImageFile() throws Exception {
+        var detector = new DiskParameterBlockDetector();
+        try (var channel = FileChannel.open(Path.of(ClassLoader.getSystemResource("system1.img").toURI()))) {
+            var ranked = detector.rank(channel);
+            assertThat(ranked.get(0).name(), is("Ampro 400"));
+            assertThat(ranked.get(0).score(), greaterThan(ranked.get(1).score()));
+            assertThat(detector.detect(channel).orElseThrow(), equalTo(TestDiskParameterBlocks.AMPRO_400_DPB));
+        }
+    }
+
+    @Test
+    public void testDetectKnownFormats() throws Exception {
+        var bigtrek = Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI()));
+        var detector = new DiskParameterBlockDetector();
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.Z80RB_BOOT_DPB,
+                TestDiskParameterBlocks.OSBORNE_1_DPB, TestDiskParameterBlocks.AMPRO_400_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            disk.createFile("BIGTREK.BAS", 0x00, new BitSet(11), ByteBuffer.wrap(bigtrek, 0, 5000));
+
+            var best = detector.rank(disk.getBuffer()).get(0);
+            assertThat(best.dpb(), equalTo(dpb));
+            assertThat(best.score(), greaterThanOrEqualTo(DiskParameterBlockDetector.THRESHOLD));
+        }
+    }
+
+    @Test
+    public void testDetectLargeFiles() throws Exception {
+        // Files over 16 KB fill the record count of their earlier extents
+        var detector = new DiskParameterBlockDetector();
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.Z80RB_BOOT_DPB,
+                TestDiskParameterBlocks.OSBORNE_1_DPB, TestDiskParameterBlocks.AMPRO_400_DPB }) {
+            var disk = CpmDisk.makeFilesystem(dpb);
+            disk.createFile("LARGE1.DAT", 0x00, new BitSet(11), ByteBuffer.allocate(20000));
+            disk.createFile("LARGE2.DAT", 0x01, new BitSet(11), ByteBuffer.allocate(40000));
+            if (dpb.offset() > 0) {
+                var loader = new byte[dpb.getOffsetBytes()];
+                for (int i = 0; i < loader.length; i++) {
+                    loader[i] = (byte) i;
+                }
+                disk.writeBootTracks(ByteBuffer.wrap(loader));
+            }
+
+            // Every sampled entry is valid, the disk is the right size, its files are counted and it can boot
+            var used = disk.getUsedEntries().count();
+            var best = detector.rank(disk.getBuffer()).get(0);
+            assertThat(used, greaterThan(2L));
+            assertThat(best.dpb(), equalTo(dpb));
+            assertThat(best.score(), closeTo(0.95 + 0.05 * Math.min(used, 8) / 8, 1e-9));
+        }
+    }
+
+    @Test
+    public void testBreakTieOnBootTrack() {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        var detector = new DiskParameterBlockDetector();
+
+        // A freshly formatted image has no boot loader
+        var blank = new byte[dpb.getFilesystemSize()];
+        Arrays.fill(blank, (byte) 0xE5);
+        var ranked = detector.rank(ByteBuffer.wrap(blank));
+        assertThat(ranked.get(0).name(), is("Z80RB"));
+        assertThat(ranked.get(0).score(), greaterThan(ranked.get(1).score()));
+
+        // A boot loader in the reserved track
+        var boot = blank.clone();
+        for (int i = 0; i < TestDiskParameterBlocks.Z80RB_BOOT_DPB.getOffsetBytes(); i++) {
+            boot[i] = (byte) i;
+        }
+        assertThat(detector.rank(ByteBuffer.wrap(boot)).get(0).name(), is("Z80RB boot"));
+    }
+
+    @Test
+    public void testRejectNoise() {
+        var noise = new byte[409600];
+        new Random(1).nextBytes(noise);
+        for (var candidate : new DiskParameterBlockDetector().rank(ByteBuffer.wrap(noise))) {
+            assertThat(candidate.score(), lessThan(DiskParameterBlockDetector.THRESHOLD));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.uberfoo.cpm.filesystem.test;
 
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static net.uberfoo.cpm.filesystem.DiskParameterBlock.createSkewTab;
 
 import net.uberfoo.cpm.filesystem.DiskParameterBlock;
 import org.junit.jupiter.api.Test;
@@ -30,4 +31,56 @@ public class DiskParameterBlockTest {
         assertThat(dpb, equalTo(TestDiskParameterBlocks.Z80RB_DPB));
     }
 
+    @Test
+    public void sectorTranslationTest() {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_BOOT_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var table = dpb.getSectorTranslationTable();
+            assertThat(dpb.getSectorTranslationTable(), sameInstance(table));
+
+            for (int block = 0; block <= dpb.storageSize(); block++) {
+                for (int i = 0; i < dpb.getBlockSectorCount(); i++) {
+                    var logicalSector = (block * dpb.getBlockSize() + dpb.getOffsetBytes()) / dpb.sectorSize() + i;
+                    var track = logicalSector / dpb.getSectorsPerTrack();
+                    var sector = dpb.translateSector(logicalSector % dpb.getSectorsPerTrack());
+                    assertThat(table.address(block, i), is((track * dpb.getSectorsPerTrack() + sector) * dpb.sectorSize()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void skewTabIsCopiedTest() {
+        var skewTab = createSkewTab(2, 10);
+        var dpb = new DiskParameterBlock(256, 20, 4, 15, 1, 45, 63, 0x80, 0x00, 0, 3, skewTab);
+        var table = dpb.getSectorTranslationTable();
+
+        // Changing either array leaves the parameters and their table alone
+        skewTab[1] = 0;
+        dpb.skewTab()[2] = 0;
+        assertThat(dpb, equalTo(TestDiskParameterBlocks.OSBORNE_1_DPB));
+        assertThat(dpb.hashCode(), is(TestDiskParameterBlocks.OSBORNE_1_DPB.hashCode()));
+        assertThat(TestDiskParameterBlocks.OSBORNE_1_DPB.getSectorTranslationTable(), sameInstance(table));
+    }
+
+    @Test
+    public void contiguousSectorsTest() {
+        for (var dpb : new DiskParameterBlock[] { TestDiskParameterBlocks.Z80RB_DPB, TestDiskParameterBlocks.OSBORNE_1_DPB }) {
+            var table = dpb.getSectorTranslationTable();
+
+            for (int block = 0; block <= dpb.storageSize(); block++) {
+                for (int i = 0; i < dpb.getBlockSectorCount(); i++) {
+                    var run = table.contiguousSectors(block, i);
+                    assertThat(run, is(both(greaterThan(0)).and(lessThanOrEqualTo(dpb.getBlockSectorCount() - i))));
+                    for (int j = 1; j < run; j++) {
+                        assertThat(table.address(block, i + j), is(table.address(block, i) + j * dpb.sectorSize()));
+                    }
+                    if (i + run < dpb.getBlockSectorCount()) {
+                        assertThat(table.address(block, i + run), not(table.address(block, i) + run * dpb.sectorSize()));
+                    }
+                }
+            }
+        }
+        assertThat(TestDiskParameterBlocks.Z80RB_DPB.getSectorTranslationTable().contiguousSectors(0, 0),
+                is(TestDiskParameterBlocks.Z80RB_DPB.getBlockSectorCount()));
+    }
 }
@@ -0,0 +1,104 @@
+package net.uberfoo.cpm.filesystem.test;
+
+import net.uberfoo.cpm.filesystem.CpmDisk;
+import net.uberfoo.cpm.filesystem.ImageCatalog;
+import net.uberfoo.cpm.filesystem.LabeledDisk;
+import net.uberfoo.cpm.filesystem.PartitionedDisk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ImageCatalogTest {
+
+    @Test
+    public void testScanDirectoryTree(@TempDir Path tempDir) throws Exception {
+        var bigtrek = Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI()));
+        var driveC = CpmDisk.makeFilesystem(TestDiskParameterBlocks.Z80RB_DPB);
+        driveC.createFile("BIGTREK.BAS", 3, new BitSet(11), ByteBuffer.wrap(bigtrek));
+        var partitionedDisk = new PartitionedDisk();
+        partitionedDisk.add(new LabeledDisk("BOOT", CpmDisk.makeFilesystem(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        partitionedDisk.add(new LabeledDisk("Drive C", driveC));
+
+        var partitioned = Files.createDirectories(tempDir.resolve("a/b")).resolve("disk.img");
+        try (var channel = FileChannel.open(partitioned, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            partitionedDisk.createDisk(channel);
+        }
+        var system = tempDir.resolve("system1.IMG");
+        Files.copy(Path.of(ClassLoader.getSystemResource("system1.img").toURI()), system);
+        Files.write(tempDir.resolve("empty.img"), new byte[100]);
+
+        var catalog = new ImageCatalog(channel -> Optional.of(TestDiskParameterBlocks.AMPRO_400_DPB)
+                .filter(x -> size(channel) >= x.getFilesystemSize()), null);
+        try (var entries = catalog.scan(tempDir)) {
+            var list = entries.toList();
+            assertThat(list, hasSize(64));
+            assertThat(list.stream().filter(x -> x.image().equals(system)).count(), is(63L));
+
+            var entry = list.stream().filter(x -> x.image().equals(partitioned)).findFirst().orElseThrow();
+            assertThat(entry.label(), is("Drive C"));
+            assertThat(entry.user(), is(3));
+            assertThat(entry.filename(), is("BIGTREK.BAS"));
+            assertThat(entry.size(), is(Math.ceilDiv(bigtrek.length, 128L) * 128));
+            var padded = Arrays.copyOf(bigtrek, (int) entry.size());
+            assertThat(entry.hash(), is(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(padded))));
+        }
+
+        // Images without a partition table are skipped without a detector
+        try (var entries = new ImageCatalog().scan(tempDir)) {
+            assertThat(entries.map(ImageCatalog.Entry::image).distinct().toList(), contains(partitioned));
+        }
+    }
+
+    @Test
+    public void testScanOnConsumerThread(@TempDir Path tempDir) throws Exception {
+        // More entries than the queue holds, all scanned on the thread reading the stream
+        var partitionedDisk = new PartitionedDisk();
+        for (int i = 0; i < 3; i++) {
+            var disk = CpmDisk.makeFilesystem(TestDiskParameterBlocks.Z80RB_DPB);
+            for (int j = 0; j < 400; j++) {
+                disk.createFile("FILE%03d.TXT".formatted(j), i, new BitSet(11), ByteBuffer.wrap(new byte[] { (byte) j }));
+            }
+            partitionedDisk.add(new LabeledDisk("Drive " + i, disk));
+        }
+        var image = tempDir.resolve("disk.img");
+        try (var channel = FileChannel.open(image, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            partitionedDisk.createDisk(channel);
+        }
+        Files.copy(image, tempDir.resolve("copy.img"));
+
+        try (var entries = new ImageCatalog(channel -> Optional.empty(), Runnable::run).scan(tempDir)) {
+            assertThat(entries.count(), is(2400L));
+        }
+
+        // Rejected images are skipped rather than holding the stream open
+        Executor rejecting = command -> {
+            throw new RejectedExecutionException();
+        };
+        try (var entries = new ImageCatalog(channel -> Optional.empty(), rejecting).scan(tempDir)) {
+            assertThat(entries.count(), is(0L));
+        }
+    }
+
+    private static long size(FileChannel channel) {
+        try {
+            return channel.size();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
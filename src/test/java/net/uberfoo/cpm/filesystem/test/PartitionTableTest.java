@@ -1,11 +1,20 @@
 package net.uberfoo.cpm.filesystem.test;
 
+import net.uberfoo.cpm.filesystem.EncodedPartitionTable;
 import net.uberfoo.cpm.filesystem.PartitionTable;
 import net.uberfoo.cpm.filesystem.PartitionTableEntry;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PartitionTableTest {
 
@@ -37,6 +46,44 @@ public class PartitionTableTest {
             table.add(entry);
         }
 
-        assertThat(table.diskSize(), is(0x180_0000));
+        assertThat(table.diskSize(), is(0x180_0000L));
+    }
+
+    @Test
+    public void testLargeOffsets() throws Exception {
+        var table = new PartitionTable();
+        table.add(new PartitionTableEntry(0, "A", TestDiskParameterBlocks.Z80RB_DPB));
+        table.add(new PartitionTableEntry(0xC000_0000L, "B", TestDiskParameterBlocks.Z80RB_DPB));
+        table.add(new PartitionTableEntry(0x2_0000_0000L, "C", TestDiskParameterBlocks.Z80RB_DPB));
+
+        var encoded = table.encode();
+        table = new PartitionTable(encoded);
+
+        assertThat(table.get(0).offset(), is(0L));
+        assertThat(table.get(1).offset(), is(0xC000_0000L));
+        assertThat(table.get(2).offset(), is(0x2_0000_0000L));
+
+        // Readers of the 32 bit offset alone must not see offset 0
+        var legacy = EncodedPartitionTable.getRootAsEncodedPartitionTable(
+                encoded.slice(0, encoded.limit() - PartitionTable.HEADER_SIZE));
+        assertThat(legacy.entries(1).offset(), is(0xC000_0000L));
+        assertThat(legacy.entries(2).offset(), is(0xFFFF_FFFFL));
+    }
+
+    @Test
+    public void testRejectNonImage(@TempDir Path tempDir) throws Exception {
+        // Without the magic, the trailing size is never trusted
+        var notImage = ByteBuffer.allocate(4096).putInt(4092, 4000);
+        var path = Files.write(tempDir.resolve("not.img"), notImage.array());
+        try (var channel = FileChannel.open(path)) {
+            assertThrows(InvalidObjectException.class, () -> new PartitionTable(channel));
+        }
+
+        // A size larger than the file is rejected before it is allocated
+        var truncated = ByteBuffer.allocate(64).put(58, (byte)0x25).put(59, (byte)0x01).putInt(60, Integer.MAX_VALUE);
+        Files.write(path, truncated.array());
+        try (var channel = FileChannel.open(path)) {
+            assertThrows(InvalidObjectException.class, () -> new PartitionTable(channel));
+        }
     }
 }
@@ -3,16 +3,25 @@ package net.uberfoo.cpm.filesystem.test;
 import net.uberfoo.cpm.filesystem.CpmDisk;
 import net.uberfoo.cpm.filesystem.DiskParameterBlock;
 import net.uberfoo.cpm.filesystem.LabeledDisk;
+import net.uberfoo.cpm.filesystem.PartitionTable;
+import net.uberfoo.cpm.filesystem.PartitionTableEntry;
 import net.uberfoo.cpm.filesystem.PartitionedDisk;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class PartitionedDiskTest {
 
@@ -74,7 +83,118 @@ public class PartitionedDiskTest {
         assertThat(disks.get(1).disk().getBuffer().limit(), is(TestDiskParameterBlocks.OSBORNE_1_DPB.getFilesystemSize()));
         assertThat(disks.get(2).disk().getBuffer().limit(), is(TestDiskParameterBlocks.Z80RB_DPB.getFilesystemSize()));
 
-        assertThat(partitionedDisk.getDiskSize(), is(0x0101_7000));
+        assertThat(partitionedDisk.getDiskSize(), is(0x0101_7000L));
+    }
+
+    @Test
+    public void testLoadPartitionsOnDemand() throws Exception {
+        var image = new PartitionedDisk();
+        image.add(new LabeledDisk("BOOT", makeDisk(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        image.add(new LabeledDisk("Floppy Drive", makeDisk(TestDiskParameterBlocks.OSBORNE_1_DPB)));
+        image.add(new LabeledDisk("Drive C", makeDisk(TestDiskParameterBlocks.Z80RB_DPB)));
+
+        var partitionedDisk = new PartitionedDisk(image.createDisk());
+        assertThat(partitionedDisk.getDiskSize(), is(image.getDiskSize()));
+        assertThat("No partition is loaded", !partitionedDisk.isLoaded(0) && !partitionedDisk.isLoaded(1) && !partitionedDisk.isLoaded(2));
+
+        var disk = partitionedDisk.get("Drive C").orElseThrow();
+        assertThat(disk.disk().getDpb(), equalTo(TestDiskParameterBlocks.Z80RB_DPB));
+        assertThat("Only the accessed partition is loaded", !partitionedDisk.isLoaded(0) && !partitionedDisk.isLoaded(1) && partitionedDisk.isLoaded(2));
+        assertThat(partitionedDisk.get(2), sameInstance(disk));
+
+        assertThat(partitionedDisk.getDisks().get(1).label(), is("Floppy Drive"));
+        assertThat("Listed partitions are loaded as read", !partitionedDisk.isLoaded(0) && partitionedDisk.isLoaded(1));
+    }
+
+    @Test
+    public void testReadLargeImage(@TempDir Path tempDir) throws Exception {
+        var dpb = TestDiskParameterBlocks.Z80RB_DPB;
+        long largeOffset = 0xC000_0000L;
+
+        var table = new PartitionTable();
+        table.add(new PartitionTableEntry(0, "A", dpb));
+        table.add(new PartitionTableEntry(largeOffset, "B", dpb));
+
+        var bigtrek = ByteBuffer.wrap(Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI())));
+        var diskA = makeDisk(dpb);
+        var diskB = makeDisk(dpb);
+        diskB.createFile("BIGTREK.BAS", 0, new BitSet(11), bigtrek.duplicate());
+
+        // Write a sparse image with the second partition past 2 GB
+        try (var channel = FileChannel.open(tempDir.resolve("large.img"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            channel.write(diskA.getBuffer(), 0);
+            channel.write(diskB.getBuffer(), largeOffset);
+            channel.write(table.encode(), largeOffset + dpb.getFilesystemSize());
+
+            var partitionedDisk = new PartitionedDisk(channel);
+            assertThat(partitionedDisk.getDisks(), hasSize(2));
+            assertThat(partitionedDisk.get("A").orElseThrow().disk().getFiles(), hasSize(0));
+
+            var file = partitionedDisk.get("B").orElseThrow().disk().findFile("BIGTREK.BAS", 0).orElseThrow();
+            assertThat(file.retrieveFileContents().slice(0, bigtrek.capacity()), equalTo(bigtrek));
+        }
+    }
+
+    @Test
+    public void testParallelCreateAndOpen(@TempDir Path tempDir) throws Exception {
+        var bigtrek = ByteBuffer.wrap(Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI())));
+        var partitionedDisk = new PartitionedDisk();
+        partitionedDisk.add(new LabeledDisk("BOOT", makeDisk(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        for (int i = 0; i < 8; i++) {
+            var disk = makeDisk(i % 2 == 0 ? TestDiskParameterBlocks.Z80RB_DPB : TestDiskParameterBlocks.OSBORNE_1_DPB);
+            disk.createFile("BIGTREK.BAS", i, new BitSet(11), bigtrek.duplicate());
+            partitionedDisk.add(new LabeledDisk("Drive " + i, disk));
+        }
+
+        try (var channel = FileChannel.open(tempDir.resolve("disk.img"),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            partitionedDisk.createDisk(channel, ForkJoinPool.commonPool());
+
+            var expected = partitionedDisk.createDisk();
+            assertThat(channel.size(), is((long) expected.limit()));
+            var written = ByteBuffer.allocate(expected.limit());
+            channel.read(written, 0);
+            assertThat(written.flip(), equalTo(expected));
+
+            var opened = new PartitionedDisk(channel, new PartitionTable(channel), ForkJoinPool.commonPool());
+            assertThat(opened.getDisks(), hasSize(9));
+            for (int i = 0; i < 8; i++) {
+                var disk = opened.get(i + 1);
+                assertThat(disk.label(), is("Drive " + i));
+                var file = disk.disk().findFile("BIGTREK.BAS", i).orElseThrow();
+                assertThat(file.retrieveFileContents().slice(0, bigtrek.capacity()), equalTo(bigtrek));
+            }
+        }
+    }
+
+    @Test
+    public void testReadOnlyImageCopiedUnopened(@TempDir Path tempDir) throws Exception {
+        var bigtrek = ByteBuffer.wrap(Files.readAllBytes(Path.of(ClassLoader.getSystemResource("BIGTREK.BAS").toURI())));
+        var image = new PartitionedDisk();
+        image.add(new LabeledDisk("BOOT", makeDisk(TestDiskParameterBlocks.Z80RB_BOOT_DPB)));
+        image.add(new LabeledDisk("Floppy Drive", makeDisk(TestDiskParameterBlocks.OSBORNE_1_DPB)));
+        image.add(new LabeledDisk("Drive C", makeDisk(TestDiskParameterBlocks.Z80RB_DPB)));
+        image.get(2).disk().createFile("BIGTREK.BAS", 0, new BitSet(11), bigtrek.duplicate());
+        var expected = image.createDisk();
+        Files.write(tempDir.resolve("source.img"), expected.array());
+
+        try (var source = FileChannel.open(tempDir.resolve("source.img"), StandardOpenOption.READ);
+             var target = FileChannel.open(tempDir.resolve("copy.img"),
+                     StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var partitionedDisk = new PartitionedDisk(source);
+            var floppy = partitionedDisk.get(1).disk();
+            assertThat("Disk of a read-only channel is read-only", floppy.isReadOnly());
+            assertThrows(ReadOnlyFileSystemException.class,
+                    () -> floppy.createFile("BIGTREK.BAS", 0, new BitSet(11), bigtrek.duplicate()));
+
+            partitionedDisk.createDisk(target, ForkJoinPool.commonPool());
+            assertThat("Unopened partitions are copied as they are", !partitionedDisk.isLoaded(0) && !partitionedDisk.isLoaded(2));
+
+            var written = ByteBuffer.allocate(expected.limit());
+            target.read(written, 0);
+            assertThat(written.flip(), equalTo(expected.rewind()));
+        }
     }
 
     @Test
@@ -1,40 +1,13 @@
 package net.uberfoo.cpm.filesystem.test;
 
-import static net.uberfoo.cpm.filesystem.DiskParameterBlock.createSkewTab;
-
 import net.uberfoo.cpm.filesystem.DiskParameterBlock;
+import net.uberfoo.cpm.filesystem.DiskParameterBlocks;
 
 public class TestDiskParameterBlocks {
 
-    public static final DiskParameterBlock Z80RB_DPB = new DiskParameterBlock(
-            512,
-            128,
-            5,
-            31,
-            1,
-            2047,
-            511,
-            240,
-            0,
-            0,
-            0,
-            new int[0]
-    );
+    public static final DiskParameterBlock Z80RB_DPB = DiskParameterBlocks.Z80RB_DPB;
 
-    public static final DiskParameterBlock Z80RB_BOOT_DPB = new DiskParameterBlock(
-            512,
-            128,
-            5,
-            31,
-            1,
-            2047,
-            511,
-            240,
-            0,
-            0,
-            1,
-            new int[0]
-    );
+    public static final DiskParameterBlock Z80RB_BOOT_DPB = DiskParameterBlocks.Z80RB_BOOT_DPB;
 
     public static final DiskParameterBlock Z80RB_MOD_ALCT_DPB = new DiskParameterBlock(
             128,
@@ -51,20 +24,8 @@ public class TestDiskParameterBlocks {
             new int[0]
     );
 
+    public static final DiskParameterBlock OSBORNE_1_DPB = DiskParameterBlocks.OSBORNE_1_DPB;
 
-    public static final DiskParameterBlock OSBORNE_1_DPB = new DiskParameterBlock(
-            256,
-            20,
-            4,
-            15,
-            1,
-            45,
-            63,
-            0x80,
-            0x00,
-            0,
-            3,
-            createSkewTab(2, 10)
-    );
+    public static final DiskParameterBlock AMPRO_400_DPB = DiskParameterBlocks.AMPRO_400_DPB;
 
 }